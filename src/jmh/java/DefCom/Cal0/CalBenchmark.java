@@ -0,0 +1,22 @@
+package DefCom.Cal0;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CalBenchmark {
+  JSONObject example;
+
+  @Setup
+  public void setup() {example = Cal.getExample();}
+
+  @Benchmark
+  public int evaluate() {return Cal.evaluate(example);}
+}
@@ -0,0 +1,24 @@
+package DefCom.Cal1;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CalBenchmark {
+  Cal.Expr example;
+
+  @Setup
+  public void setup() {example = Cal.getExample();}
+
+  @Benchmark
+  public int method() {return example.eval();}
+
+  @Benchmark
+  public int instanceOf() {return Cal.eval(example);}
+}
@@ -0,0 +1,34 @@
+package DefCom.Cal2;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CalBenchmark {
+  @Param({"2", "4", "8"})
+  int n;
+
+  Cal.Expr example;
+  Cal.Expr simpExample;
+  Map<String, Integer> env;
+
+  @Setup
+  public void setup() {
+    example = Cal.getExample(n);
+    simpExample = example.simp();
+    env = Cal.getExampleEnv(n);
+  }
+
+  @Benchmark
+  public int eval() {return example.eval(env);}
+
+  @Benchmark
+  public int simpEval() {return simpExample.eval(env);}
+}
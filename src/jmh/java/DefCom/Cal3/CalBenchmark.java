@@ -0,0 +1,44 @@
+package DefCom.Cal3;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CalBenchmark {
+  @Param({"2", "4", "8"})
+  int n;
+
+  Cal.Expr example;
+  Map<String, Integer> env;
+  Map<String, Integer> loc;
+  int[] locEnv;
+  ToIntFunction<int[]> located;
+
+  @Setup
+  public void setup() {
+    example = Cal.getExample(n);
+    env = Cal.getExampleEnv(n);
+    loc = new HashMap<>();
+    example.locate(loc);
+    locEnv = Cal.envToLocEnv(env, loc);
+    located = example.again(loc);
+  }
+
+  @Benchmark
+  public int mapEnv() {return example.eval(env);}
+
+  @Benchmark
+  public int arrayEnv() {return example.yolo(loc, locEnv);}
+
+  @Benchmark
+  public int closure() {return located.applyAsInt(locEnv);}
+}
@@ -0,0 +1,60 @@
+package DefCom.Cal4;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
+
+// Steady-state throughput of every Cal4 engine, with preparation done once in setup.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CalBenchmark {
+  @Param({"2", "4", "8"})
+  int n;
+
+  Cal.LExpr located;
+  int[] locEnv;
+  ToIntFunction<int[]> compiled;
+  ToIntFunction<int[]> assembled;
+  ToIntFunction<int[]> handles;
+  int[][] columns;
+  int[] out;
+
+  @Setup
+  public void setup() throws Throwable {
+    Cal.Expr example = Cal.getExample(n);
+    Env env = Cal.getExampleEnv(n);
+    Loc loc = new Loc();
+    example.locate(loc);
+    located = example.located(loc);
+    locEnv = Cal.envToLocEnv(env, loc);
+    compiled = Cal.javac(located);
+    assembled = Cal.asm(located);
+    handles = Cal.handles(located);
+    columns = Cal.envToLocColumns(env, loc, Batch.BLOCK);
+    out = new int[Batch.BLOCK];
+  }
+
+  @Benchmark
+  public int closure() {return located.eval(locEnv);}
+
+  @Benchmark
+  public int compiled() {return compiled.applyAsInt(locEnv);}
+
+  @Benchmark
+  public int assembled() {return assembled.applyAsInt(locEnv);}
+
+  @Benchmark
+  public int handles() {return handles.applyAsInt(locEnv);}
+
+  // One call evaluates Batch.BLOCK rows.
+  @Benchmark
+  public int[] batch() {
+    Batch.eval(located, columns, out);
+    return out;
+  }
+}
@@ -0,0 +1,46 @@
+package DefCom.Cal4;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
+
+// Preparation latency of every Cal4 engine, measured cold on each invocation.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 10)
+@Measurement(iterations = 20)
+@Fork(1)
+public class CompileBenchmark {
+  @Param({"2", "4", "8"})
+  int n;
+
+  Cal.Expr example;
+  Loc loc;
+  Cal.LExpr located;
+
+  @Setup
+  public void setup() {
+    example = Cal.getExample(n);
+    loc = new Loc();
+    example.locate(loc);
+    located = example.located(loc);
+  }
+
+  @Benchmark
+  public Cal.LExpr locate() {
+    Loc loc = new Loc();
+    example.locate(loc);
+    return example.located(loc);
+  }
+
+  @Benchmark
+  public ToIntFunction<int[]> javac() throws Throwable {return Cal.javac(located);}
+
+  @Benchmark
+  public ToIntFunction<int[]> asm() throws Throwable {return Cal.asm(located);}
+
+  @Benchmark
+  public ToIntFunction<int[]> handles() throws Throwable {return Cal.handles(located);}
+}
@@ -1,21 +1,63 @@
 // Adding Input to our language, and adding a simplification pass
 package DefCom.Cal2;
 
+import DefCom.Util.Fold;
+import DefCom.Util.Metrics;
+import DefCom.Util.Walk;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
+import java.util.WeakHashMap;
 
 public class Cal {
   abstract static class Expr {
+    int hash;
+    // Nodes of this Expr as a tree, so a shared subtree counts once per use; fixed when it is built.
+    long size = 1;
+    Expr simped;
+
     abstract int eval(Map<String, Integer> env);
 
-    Expr simp() {return this;}
+    Expr simp() {
+      if (simped == null) {
+        simped = doSimp();
+      }
+      return simped;
+    }
+
+    Expr doSimp() {return this;}
+
+    public int hashCode() {return hash;}
+  }
+
+  // Every Expr is built through the mk functions, which intern it, so structurally equal Exprs are the same object.
+  // equals only has to compare children by reference, and is only used by the table itself.
+  // WeakHashMap is not thread-safe, so every lookup and insert holds the table's lock.
+  static final Map<Expr, WeakReference<Expr>> table = new WeakHashMap<>();
+
+  static Expr intern(Expr expr) {
+    synchronized (table) {
+      WeakReference<Expr> ref = table.get(expr);
+      Expr old = ref == null ? null : ref.get();
+      if (old != null) {
+        return old;
+      }
+      table.put(expr, new WeakReference<>(expr));
+      return expr;
+    }
   }
 
   static class Lit extends Expr {
     int val;
 
-    Lit(int val) {this.val = val;}
+    Lit(int val) {
+      this.val = val;
+      this.hash = val;
+    }
 
     public String toString() {return String.valueOf(val);}
 
@@ -29,7 +71,10 @@ public class Cal {
     }
   }
 
-  static Expr mkLit(int val) {return new Lit(val);}
+  static Expr mkLit(int val) {return intern(new Lit(val));}
+
+  static final Expr ZERO = mkLit(0);
+  static final Expr ONE = mkLit(1);
 
   static class Plus extends Expr {
     Expr left, right;
@@ -37,6 +82,8 @@ public class Cal {
     Plus(Expr left, Expr right) {
       this.left = left;
       this.right = right;
+      this.hash = 31 * (31 * left.hash + right.hash) + 1;
+      this.size = 1 + left.size + right.size;
     }
 
     public String toString() {return "(" + left.toString() + "+" + right.toString() + ")";}
@@ -47,25 +94,13 @@ public class Cal {
       if (this == o) return true;
       if (o == null || getClass() != o.getClass()) return false;
       Plus plus = (Plus) o;
-      return Objects.equals(left, plus.left) && Objects.equals(right, plus.right);
+      return left == plus.left && right == plus.right;
     }
 
-    Expr simp() {
-      Expr left = this.left.simp();
-      Expr right = this.right.simp();
-      if (left instanceof Lit && right instanceof Lit) {
-        return mkLit(((Lit) left).val + ((Lit) right).val);
-      } else if (left.equals(mkLit(0))) {
-        return right;
-      } else if (right.equals(mkLit(0))) {
-        return left;
-      } else {
-        return mkPlus(left, right);
-      }
-    }
+    Expr doSimp() {return simpPlus(left.simp(), right.simp());}
   }
 
-  static Expr mkPlus(Expr left, Expr right) {return new Plus(left, right);}
+  static Expr mkPlus(Expr left, Expr right) {return intern(new Plus(left, right));}
 
   static class Mult extends Expr {
     Expr left, right;
@@ -73,6 +108,8 @@ public class Cal {
     Mult(Expr left, Expr right) {
       this.left = left;
       this.right = right;
+      this.hash = 31 * (31 * left.hash + right.hash) + 2;
+      this.size = 1 + left.size + right.size;
     }
 
     public String toString() {return "(" + left.toString() + "*" + right.toString() + ")";}
@@ -83,32 +120,21 @@ public class Cal {
       if (this == o) return true;
       if (o == null || getClass() != o.getClass()) return false;
       Mult mult = (Mult) o;
-      return Objects.equals(left, mult.left) && Objects.equals(right, mult.right);
+      return left == mult.left && right == mult.right;
     }
 
-    Expr simp() {
-      Expr left = this.left.simp();
-      Expr right = this.right.simp();
-      if (left instanceof Lit && right instanceof Lit) {
-        return mkLit(((Lit) left).val * ((Lit) right).val);
-      } else if (left.equals(mkLit(0)) || right.equals(mkLit(0))) {
-        return mkLit(0);
-      } else if (left.equals(mkLit(1))) {
-        return right;
-      } else if (right.equals(mkLit(1))) {
-        return left;
-      } else {
-        return mkMult(left, right);
-      }
-    }
+    Expr doSimp() {return simpMult(left.simp(), right.simp());}
   }
 
-  static Expr mkMult(Expr left, Expr right) {return new Mult(left, right);}
+  static Expr mkMult(Expr left, Expr right) {return intern(new Mult(left, right));}
 
   static class Var extends Expr {
     String name;
 
-    Var(String name) {this.name = name;}
+    Var(String name) {
+      this.name = name;
+      this.hash = name.hashCode();
+    }
 
     public String toString() {return name;}
 
@@ -122,7 +148,102 @@ public class Cal {
     }
   }
 
-  static Expr mkVar(String name) {return new Var(name);}
+  static Expr mkVar(String name) {return intern(new Var(name));}
+
+  // Folds the constants of a node whose children are already simplified; Cal4 specialize shares the rules.
+  static final Fold<Expr> FOLD = new Fold<>() {
+    public boolean isLit(Expr expr) {return expr instanceof Lit;}
+
+    public int val(Expr expr) {return ((Lit) expr).val;}
+
+    public Expr lit(int val) {return mkLit(val);}
+
+    public Expr plus(Expr left, Expr right) {return mkPlus(left, right);}
+
+    public Expr mult(Expr left, Expr right) {return mkMult(left, right);}
+  };
+
+  static Expr simpPlus(Expr left, Expr right) {return FOLD.simpPlus(left, right);}
+
+  static Expr simpMult(Expr left, Expr right) {return FOLD.simpMult(left, right);}
+
+  // Explicit-stack versions of toString, eval and simp, for expressions too deep for the Java stack.
+  abstract static class ExprWalk extends Walk<Expr> {
+    public Expr left(Expr expr) {
+      if (expr instanceof Plus) return ((Plus) expr).left;
+      if (expr instanceof Mult) return ((Mult) expr).left;
+      return null;
+    }
+
+    public Expr right(Expr expr) {
+      if (expr instanceof Plus) return ((Plus) expr).right;
+      return ((Mult) expr).right;
+    }
+  }
+
+  static String ppIter(Expr expr) {
+    StringBuilder sb = new StringBuilder();
+    new ExprWalk() {
+      public void leaf(Expr expr) {sb.append(expr);}
+
+      public void enter(Expr expr) {sb.append('(');}
+
+      public void middle(Expr expr) {sb.append(expr instanceof Plus ? '+' : '*');}
+
+      public void exit(Expr expr) {sb.append(')');}
+    }.walk(expr);
+    return sb.toString();
+  }
+
+  static int evalIter(Expr expr, Map<String, Integer> env) {
+    return new ExprWalk() {
+      int[] values = new int[64];
+      int sp = 0;
+
+      public void leaf(Expr expr) {
+        if (sp == values.length) {
+          values = Arrays.copyOf(values, sp * 2);
+        }
+        values[sp++] = expr.eval(env);
+      }
+
+      public void exit(Expr expr) {
+        int right = values[--sp];
+        values[sp - 1] = expr instanceof Plus ? values[sp - 1] + right : values[sp - 1] * right;
+      }
+
+      int run() {
+        walk(expr);
+        return values[0];
+      }
+    }.run();
+  }
+
+  // Nodes that were simplified before are treated as leaves, so shared subtrees are only walked once.
+  static Expr simpIter(Expr expr) {
+    ArrayList<Expr> stack = new ArrayList<>();
+    new ExprWalk() {
+      public Expr left(Expr expr) {return expr.simped == null ? super.left(expr) : null;}
+
+      public void leaf(Expr expr) {stack.add(expr.simp());}
+
+      public void exit(Expr expr) {
+        Expr right = stack.remove(stack.size() - 1);
+        Expr left = stack.remove(stack.size() - 1);
+        expr.simped = expr instanceof Plus ? simpPlus(left, right) : simpMult(left, right);
+        stack.add(expr.simped);
+      }
+    }.walk(expr);
+    return stack.get(0);
+  }
+
+  // simpIter, recorded in Metrics with how many nodes it removed.
+  static Expr simplify(Expr expr) {
+    Metrics.Simplify event = new Metrics.Simplify();
+    Expr simped = simpIter(expr);
+    event.done(expr.size, simped.size);
+    return simped;
+  }
 
   static Expr getExample(int n) {
     Expr ret = mkLit(0);
@@ -156,14 +277,25 @@ public class Cal {
       int n = 2;
       Expr example = getExample(n);
       System.out.println(example);
-      Expr simpExample = example.simp();
+      Expr simpExample = simplify(example);
       System.out.println(simpExample);
       Map<String, Integer> env = getExampleEnv(n);
       System.out.println(example.eval(env));
       System.out.println(simpExample.eval(env));
       Expr oldExample = mkMult(mkPlus(mkLit(1), mkLit(2)), mkPlus(mkLit(3), mkLit(4)));
       System.out.println(oldExample);
-      System.out.println(oldExample.simp());
+      System.out.println(simplify(oldExample));
+      if (getExample(n) != example) {
+        throw new RuntimeException("Unexpected value: getExample was not hash-consed");
+      }
+      System.out.println(Poly.normalize(mkPlus(mkPlus(mkLit(1), mkVar("x")), mkLit(2))));
+      System.out.println(Poly.normalize(mkPlus(mkMult(mkVar("x"), mkVar("y")), mkMult(mkVar("y"), mkVar("x")))));
+      System.out.println(Poly.normalize(example));
+      Expr deep = getExample(64);
+      System.out.println(ppIter(simplify(deep)).length());
+      System.out.println(evalIter(deep, getExampleEnv(64)));
+      System.out.println(evalIter(Poly.normalize(deep), getExampleEnv(64)));
+      System.out.println(Metrics.report());
     } catch (Throwable t) {
       t.printStackTrace();
     }
@@ -0,0 +1,158 @@
+// A stronger simplification pass: normalizing an expression into a sum of monomials
+package DefCom.Cal2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static DefCom.Cal2.Cal.*;
+
+// Coefficients are ints and wrap like eval does, so the ring laws used here hold exactly.
+class Poly {
+  // Multiplying out two sums with more than this many term pairs is skipped: their product is kept
+  // as an opaque atom instead, so the pass stays near-linear and cannot blow up exponentially.
+  // Scaling a sum by a single monomial is always linear, so it is always multiplied out.
+  static final int EXPAND_LIMIT = 256;
+
+  // A product of atoms, kept sorted by compareAtoms. Atoms are Vars, or opaque subexpressions
+  // that were too large to multiply out. Exprs are hash-consed, so atoms compare by reference.
+  static class Monomial {
+    final Expr[] atoms;
+    final int hash;
+
+    Monomial(Expr[] atoms) {
+      this.atoms = atoms;
+      int hash = 1;
+      for (Expr atom : atoms) {
+        hash = 31 * hash + atom.hash;
+      }
+      this.hash = hash;
+    }
+
+    public int hashCode() {return hash;}
+
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+      Monomial m = (Monomial) o;
+      if (hash != m.hash || atoms.length != m.atoms.length) return false;
+      for (int i = 0; i < atoms.length; ++i) {
+        if (atoms[i] != m.atoms[i]) return false;
+      }
+      return true;
+    }
+
+    Monomial times(Monomial m) {
+      Expr[] out = new Expr[atoms.length + m.atoms.length];
+      int i = 0, j = 0, k = 0;
+      while (i < atoms.length && j < m.atoms.length) {
+        out[k++] = compareAtoms(atoms[i], m.atoms[j]) <= 0 ? atoms[i++] : m.atoms[j++];
+      }
+      while (i < atoms.length) out[k++] = atoms[i++];
+      while (j < m.atoms.length) out[k++] = m.atoms[j++];
+      return new Monomial(out);
+    }
+  }
+
+  static final Monomial ONE = new Monomial(new Expr[0]);
+
+  static int compareAtoms(Expr a, Expr b) {
+    if (a == b) return 0;
+    boolean av = a instanceof Var, bv = b instanceof Var;
+    if (av && bv) return ((Var) a).name.compareTo(((Var) b).name);
+    if (av != bv) return av ? -1 : 1;
+    int c = Integer.compare(a.hash, b.hash);
+    return c != 0 ? c : a.toString().compareTo(b.toString());
+  }
+
+  static int compareMonomials(Monomial a, Monomial b) {
+    if (a.atoms.length != b.atoms.length) return Integer.compare(a.atoms.length, b.atoms.length);
+    for (int i = 0; i < a.atoms.length; ++i) {
+      int c = compareAtoms(a.atoms[i], b.atoms[i]);
+      if (c != 0) return c;
+    }
+    return 0;
+  }
+
+  final HashMap<Monomial, Integer> terms = new HashMap<>();
+
+  static Poly constant(int val) {
+    Poly p = new Poly();
+    p.add(ONE, val);
+    return p;
+  }
+
+  static Poly atom(Expr atom) {
+    Poly p = new Poly();
+    p.add(new Monomial(new Expr[] {atom}), 1);
+    return p;
+  }
+
+  void add(Monomial m, int coef) {
+    if (terms.merge(m, coef, Integer::sum) == 0) {
+      terms.remove(m);
+    }
+  }
+
+  // Merges the smaller polynomial into the larger one, which is reused; both arguments are consumed.
+  static Poly plus(Poly l, Poly r) {
+    if (l.terms.size() < r.terms.size()) {
+      Poly t = l;
+      l = r;
+      r = t;
+    }
+    for (Map.Entry<Monomial, Integer> x : r.terms.entrySet()) {
+      l.add(x.getKey(), x.getValue());
+    }
+    return l;
+  }
+
+  static Poly mult(Poly l, Poly r) {
+    int small = Math.min(l.terms.size(), r.terms.size());
+    if (small > 1 && (long) l.terms.size() * r.terms.size() > EXPAND_LIMIT) {
+      return atom(mkMult(l.toExpr(), r.toExpr()));
+    }
+    Poly p = new Poly();
+    for (Map.Entry<Monomial, Integer> x : l.terms.entrySet()) {
+      for (Map.Entry<Monomial, Integer> y : r.terms.entrySet()) {
+        p.add(x.getKey().times(y.getKey()), x.getValue() * y.getValue());
+      }
+    }
+    return p;
+  }
+
+  static Poly of(Expr expr) {
+    ArrayList<Poly> stack = new ArrayList<>();
+    new ExprWalk() {
+      public void leaf(Expr expr) {
+        stack.add(expr instanceof Lit ? constant(((Lit) expr).val) : atom(expr));
+      }
+
+      public void exit(Expr expr) {
+        Poly right = stack.remove(stack.size() - 1);
+        Poly left = stack.remove(stack.size() - 1);
+        stack.add(expr instanceof Plus ? plus(left, right) : mult(left, right));
+      }
+    }.walk(expr);
+    return stack.get(0);
+  }
+
+  // Rebuilds a minimal Expr: monomials in canonical order, constant first, unit coefficients dropped.
+  Expr toExpr() {
+    Monomial[] sorted = terms.keySet().toArray(new Monomial[0]);
+    Arrays.sort(sorted, Poly::compareMonomials);
+    Expr ret = null;
+    for (Monomial m : sorted) {
+      int coef = terms.get(m);
+      Expr term = coef == 1 && m.atoms.length > 0 ? null : mkLit(coef);
+      for (Expr atom : m.atoms) {
+        term = term == null ? atom : mkMult(term, atom);
+      }
+      ret = ret == null ? term : mkPlus(ret, term);
+    }
+    return ret == null ? ZERO : ret;
+  }
+
+  static Expr normalize(Expr expr) {return of(expr).toExpr();}
+}
@@ -1,9 +1,13 @@
 // Deriving a staged definitional interpreter
 package DefCom.Cal3;
 
+import DefCom.Util.Metrics;
+import DefCom.Util.Walk;
+
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.function.Function;
+import java.util.function.ToIntFunction;
 
 public class Cal {
   abstract static class Expr {
@@ -11,7 +15,7 @@ public class Cal {
 
     abstract int yolo(Map<String, Integer> loc, int[] env);
 
-    abstract Function<int[], Integer> again(Map<String, Integer> loc);
+    abstract ToIntFunction<int[]> again(Map<String, Integer> loc);
 
     abstract void locate(Map<String, Integer> loc);
   }
@@ -27,7 +31,7 @@ public class Cal {
 
     int yolo(Map<String, Integer> loc, int[] env) {return val;}
 
-    Function<int[], Integer> again(Map<String, Integer> loc) {return env -> val;}
+    ToIntFunction<int[]> again(Map<String, Integer> loc) {return env -> val;}
 
     void locate(Map<String, Integer> loc) {}
   }
@@ -48,10 +52,10 @@ public class Cal {
 
     int yolo(Map<String, Integer> loc, int[] env) {return left.yolo(loc, env) + right.yolo(loc, env);}
 
-    Function<int[], Integer> again(Map<String, Integer> loc) {
-      Function<int[], Integer> left = this.left.again(loc);
-      Function<int[], Integer> right = this.right.again(loc);
-      return env -> left.apply(env) + right.apply(env);
+    ToIntFunction<int[]> again(Map<String, Integer> loc) {
+      ToIntFunction<int[]> left = this.left.again(loc);
+      ToIntFunction<int[]> right = this.right.again(loc);
+      return env -> left.applyAsInt(env) + right.applyAsInt(env);
     }
 
     void locate(Map<String, Integer> loc) {
@@ -76,10 +80,10 @@ public class Cal {
 
     int yolo(Map<String, Integer> loc, int[] env) {return left.yolo(loc, env) * right.yolo(loc, env);}
 
-    Function<int[], Integer> again(Map<String, Integer> loc) {
-      Function<int[], Integer> left = this.left.again(loc);
-      Function<int[], Integer> right = this.right.again(loc);
-      return env -> left.apply(env) * right.apply(env);
+    ToIntFunction<int[]> again(Map<String, Integer> loc) {
+      ToIntFunction<int[]> left = this.left.again(loc);
+      ToIntFunction<int[]> right = this.right.again(loc);
+      return env -> left.applyAsInt(env) * right.applyAsInt(env);
     }
 
     void locate(Map<String, Integer> loc) {
@@ -103,7 +107,7 @@ public class Cal {
       return env[idx];
     }
 
-    Function<int[], Integer> again(Map<String, Integer> loc) {
+    ToIntFunction<int[]> again(Map<String, Integer> loc) {
       int idx = loc.get(name);
       return env -> env[idx];
     }
@@ -117,6 +121,63 @@ public class Cal {
 
   static Expr mkVar(String name) {return new Var(name);}
 
+  // Explicit-stack versions of eval, yolo and locate, for expressions too deep for the Java stack.
+  // again has no such version: the closures it builds call each other, so running them recurses anyway.
+  abstract static class ExprWalk extends Walk<Expr> {
+    public Expr left(Expr expr) {
+      if (expr instanceof Plus) return ((Plus) expr).left;
+      if (expr instanceof Mult) return ((Mult) expr).left;
+      return null;
+    }
+
+    public Expr right(Expr expr) {
+      if (expr instanceof Plus) return ((Plus) expr).right;
+      return ((Mult) expr).right;
+    }
+  }
+
+  abstract static class EvalWalk extends ExprWalk {
+    int[] values = new int[64];
+    int sp = 0;
+
+    abstract int value(Expr leaf);
+
+    public void leaf(Expr expr) {
+      if (sp == values.length) {
+        values = Arrays.copyOf(values, sp * 2);
+      }
+      values[sp++] = value(expr);
+    }
+
+    public void exit(Expr expr) {
+      int right = values[--sp];
+      values[sp - 1] = expr instanceof Plus ? values[sp - 1] + right : values[sp - 1] * right;
+    }
+
+    int run(Expr expr) {
+      walk(expr);
+      return values[0];
+    }
+  }
+
+  static int evalIter(Expr expr, Map<String, Integer> env) {
+    return new EvalWalk() {
+      int value(Expr leaf) {return leaf.eval(env);}
+    }.run(expr);
+  }
+
+  static int yoloIter(Expr expr, Map<String, Integer> loc, int[] env) {
+    return new EvalWalk() {
+      int value(Expr leaf) {return leaf.yolo(loc, env);}
+    }.run(expr);
+  }
+
+  static void locateIter(Expr expr, Map<String, Integer> loc) {
+    new ExprWalk() {
+      public void leaf(Expr expr) {expr.locate(loc);}
+    }.walk(expr);
+  }
+
   static Expr getExample(int n) {
     Expr ret = mkLit(0);
     for (int i = 0; i < n; ++i) {
@@ -155,9 +216,11 @@ public class Cal {
   public static void profileEval(int n, int length) {
     Expr example = getExample(n);
     Map<String, Integer> env = getExampleEnv(n);
+    Metrics.Eval event = new Metrics.Eval("eval");
     for (int i = 0; i < length; ++i) {
       example.eval(env);
     }
+    event.done(length);
   }
 
   public static void profileYolo(int n, int length) {
@@ -166,9 +229,11 @@ public class Cal {
     Map<String, Integer> loc = new HashMap<>();
     example.locate(loc);
     int[] locEnv = envToLocEnv(env, loc);
+    Metrics.Eval event = new Metrics.Eval("yolo");
     for (int i = 0; i < length; ++i) {
       example.yolo(loc, locEnv);
     }
+    event.done(length);
   }
 
   public static void profileAgain(int n, int length) {
@@ -176,11 +241,22 @@ public class Cal {
     Map<String, Integer> env = getExampleEnv(n);
     Map<String, Integer> loc = new HashMap<>();
     example.locate(loc);
-    Function<int[], Integer> located = example.again(loc);
+    ToIntFunction<int[]> located = example.again(loc);
     int[] locEnv = envToLocEnv(env, loc);
+    Metrics.Eval event = new Metrics.Eval("again");
     for (int i = 0; i < length; ++i) {
-      located.apply(locEnv);
+      located.applyAsInt(locEnv);
     }
+    event.done(length);
+  }
+
+  public static void profileDeep(int n) {
+    Expr example = getExample(n);
+    Map<String, Integer> env = getExampleEnv(n);
+    Map<String, Integer> loc = new HashMap<>();
+    locateIter(example, loc);
+    System.out.printf("Deep example evaluates to %s and %s%n",
+      evalIter(example, env), yoloIter(example, loc, envToLocEnv(env, loc)));
   }
 
   public static void main(String[] args) {
@@ -194,9 +270,13 @@ public class Cal {
       long time2 = System.currentTimeMillis();
       profileAgain(n, length);
       long time3 = System.currentTimeMillis();
+      profileDeep(64);
+      long time4 = System.currentTimeMillis();
       System.out.printf("Eval took %s%n", time1 - time0);
       System.out.printf("Yolo took %s%n", time2 - time1);
       System.out.printf("Again took %s%n", time3 - time2);
+      System.out.printf("Deep took %s%n", time4 - time3);
+      System.out.println(Metrics.report());
     } catch (Throwable t) {
       t.printStackTrace();
     }
@@ -0,0 +1,373 @@
+// Emitting JVM bytecode for a located expression directly, without javac or the filesystem
+package DefCom.Cal4;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.ToIntFunction;
+
+// The expression is cut into methods as Split cuts it, each at most Split.METHOD_NODES nodes and so
+// far below both the 64 KB and the JIT's 8000-byte limit. A single method is applyAsInt itself.
+// Otherwise every method is a private mK(env, t) storing its result in t[K], and applyAsInt runs them
+// in postorder through one runP per Split.CLASS_METHODS of them, like Split's generated source.
+// Code is emitted from an LExprWalk, so no depth of expression recurses here or in the result.
+// t is allocated per call: only split expressions have one, and they cost far more than it does.
+class Assembler {
+  static final int VERSION = 61;
+  static final int ACC_PUBLIC = 0x0001, ACC_PRIVATE = 0x0002, ACC_STATIC = 0x0008, ACC_FINAL = 0x0010, ACC_SUPER = 0x0020;
+
+  static final String NAME = "DefCom/Cal4/Assembled";
+  static final String INVOKER = "DefCom/Cal4/Invoker";
+  static final String HANDLE = "java/lang/invoke/MethodHandle";
+
+  ByteArrayOutputStream pool = new ByteArrayOutputStream();
+  DataOutputStream poolOut = new DataOutputStream(pool);
+  Map<String, Integer> poolIndex = new HashMap<>();
+  int poolSize = 1;
+
+  ByteArrayOutputStream code = new ByteArrayOutputStream();
+  DataOutputStream codeOut = new DataOutputStream(code);
+  int stack = 0;
+  int maxStack = 0;
+
+  // The private helper methods, written out by classFile after applyAsInt.
+  ByteArrayOutputStream helpers = new ByteArrayOutputStream();
+  DataOutputStream helpersOut = new DataOutputStream(helpers);
+  int helperCount = 0;
+
+  int utf8(String s) throws IOException {
+    Integer idx = poolIndex.get("U" + s);
+    if (idx != null) return idx;
+    poolOut.writeByte(1);
+    poolOut.writeUTF(s);
+    poolIndex.put("U" + s, poolSize);
+    return poolSize++;
+  }
+
+  int integer(int val) throws IOException {
+    Integer idx = poolIndex.get("I" + val);
+    if (idx != null) return idx;
+    poolOut.writeByte(3);
+    poolOut.writeInt(val);
+    poolIndex.put("I" + val, poolSize);
+    return poolSize++;
+  }
+
+  int cls(String name) throws IOException {
+    Integer idx = poolIndex.get("C" + name);
+    if (idx != null) return idx;
+    int nameIdx = utf8(name);
+    poolOut.writeByte(7);
+    poolOut.writeShort(nameIdx);
+    poolIndex.put("C" + name, poolSize);
+    return poolSize++;
+  }
+
+  int string(String s) throws IOException {
+    Integer idx = poolIndex.get("S" + s);
+    if (idx != null) return idx;
+    int utf8Idx = utf8(s);
+    poolOut.writeByte(8);
+    poolOut.writeShort(utf8Idx);
+    poolIndex.put("S" + s, poolSize);
+    return poolSize++;
+  }
+
+  int member(int tag, String owner, String name, String desc) throws IOException {
+    String key = "M" + tag + owner + "." + name + desc;
+    Integer idx = poolIndex.get(key);
+    if (idx != null) return idx;
+    int ownerIdx = cls(owner);
+    int nameIdx = utf8(name);
+    int descIdx = utf8(desc);
+    poolOut.writeByte(12);
+    poolOut.writeShort(nameIdx);
+    poolOut.writeShort(descIdx);
+    int natIdx = poolSize++;
+    poolOut.writeByte(tag);
+    poolOut.writeShort(ownerIdx);
+    poolOut.writeShort(natIdx);
+    poolIndex.put(key, poolSize);
+    return poolSize++;
+  }
+
+  int method(String owner, String name, String desc) throws IOException {return member(10, owner, name, desc);}
+
+  int field(String owner, String name, String desc) throws IOException {return member(9, owner, name, desc);}
+
+  void push(int n) {
+    stack += n;
+    maxStack = Math.max(maxStack, stack);
+  }
+
+  void pushInt(int val) throws IOException {
+    if (val >= -1 && val <= 5) {
+      codeOut.writeByte(0x03 + val); // iconst_<val>
+    } else if (val >= Byte.MIN_VALUE && val <= Byte.MAX_VALUE) {
+      codeOut.writeByte(0x10); // bipush
+      codeOut.writeByte(val);
+    } else if (val >= Short.MIN_VALUE && val <= Short.MAX_VALUE) {
+      codeOut.writeByte(0x11); // sipush
+      codeOut.writeShort(val);
+    } else {
+      codeOut.writeByte(0x13); // ldc_w
+      codeOut.writeShort(integer(val));
+    }
+    push(1);
+  }
+
+  void loadSlot(int idx) throws IOException {
+    codeOut.writeByte(0x2b); // aload_1
+    push(1);
+    pushInt(idx);
+    codeOut.writeByte(0x2e); // iaload
+    push(-1);
+  }
+
+  void add() throws IOException {
+    codeOut.writeByte(0x60); // iadd
+    push(-1);
+  }
+
+  void mul() throws IOException {
+    codeOut.writeByte(0x68); // imul
+    push(-1);
+  }
+
+  // Calls this.name(env, t), with env in local 1 and t in local 2, as in every method but <init>.
+  void callHelper(String name) throws IOException {
+    codeOut.writeByte(0x2a); // aload_0
+    codeOut.writeByte(0x2b); // aload_1
+    codeOut.writeByte(0x2c); // aload_2
+    push(3);
+    codeOut.writeByte(0xb7); // invokespecial
+    codeOut.writeShort(method(NAME, name, "([I[I)V"));
+    push(-3);
+  }
+
+  void loadTemp(int idx) throws IOException {
+    codeOut.writeByte(0x2c); // aload_2
+    push(1);
+    pushInt(idx);
+    codeOut.writeByte(0x2e); // iaload
+    push(-1);
+  }
+
+  // Returns the code emitted since the last call, and starts a fresh method.
+  byte[] take() {
+    byte[] body = code.toByteArray();
+    code.reset();
+    stack = 0;
+    return body;
+  }
+
+  void helper(String name, byte[] body) throws IOException {
+    writeMethod(helpersOut, ACC_PRIVATE | ACC_FINAL, name, "([I[I)V", body, Math.max(maxStack, 1), 3);
+    maxStack = 0;
+    ++helperCount;
+  }
+
+  // The nodes of method in postorder, each as its one instruction (or three for a Var).
+  // An outlined child is one load from t, where its own method has already stored it.
+  void body(Split split, int method) {
+    Cal.LExpr root = split.methods.get(method);
+    new Cal.LExprWalk() {
+      public Cal.LExpr left(Cal.LExpr expr) {
+        return expr != root && split.outlined.containsKey(expr) ? null : super.left(expr);
+      }
+
+      public void leaf(Cal.LExpr expr) {
+        try {
+          if (expr != root && split.outlined.containsKey(expr)) {
+            loadTemp(split.outlined.get(expr));
+          } else {
+            expr.assemble(Assembler.this);
+          }
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+
+      public void exit(Cal.LExpr expr) {
+        try {
+          expr.assemble(Assembler.this);
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    }.walk(root);
+  }
+
+  void writeMethod(DataOutputStream out, String name, String desc, byte[] body, int maxStack, int maxLocals)
+    throws IOException {
+    writeMethod(out, ACC_PUBLIC, name, desc, body, maxStack, maxLocals);
+  }
+
+  void writeMethod(DataOutputStream out, int access, String name, String desc, byte[] body, int maxStack, int maxLocals)
+    throws IOException {
+    out.writeShort(access);
+    out.writeShort(utf8(name));
+    out.writeShort(utf8(desc));
+    out.writeShort(1);
+    out.writeShort(utf8("Code"));
+    out.writeInt(12 + body.length);
+    out.writeShort(maxStack);
+    out.writeShort(maxLocals);
+    out.writeInt(body.length);
+    out.write(body);
+    out.writeShort(0); // exception table
+    out.writeShort(0); // attributes
+  }
+
+  byte[] assemble(Cal.LExpr expr) throws IOException {
+    Split split = new Split();
+    split.partition(expr);
+    int count = split.methods.size();
+    if (count > 1) {
+      for (int m = 0; m < count; ++m) {
+        codeOut.writeByte(0x2c); // aload_2
+        push(1);
+        pushInt(m);
+        body(split, m);
+        codeOut.writeByte(0x4f); // iastore
+        push(-3);
+        codeOut.writeByte(0xb1); // return
+        helper("m" + m, take());
+      }
+      ArrayList<String> runs = new ArrayList<>();
+      for (int part = 0; part * Split.CLASS_METHODS < count; ++part) {
+        for (int m = part * Split.CLASS_METHODS; m < Math.min((part + 1) * Split.CLASS_METHODS, count); ++m) {
+          callHelper("m" + m);
+        }
+        codeOut.writeByte(0xb1); // return
+        runs.add("run" + part);
+        helper("run" + part, take());
+      }
+      codeOut.writeByte(0x2b); // aload_1
+      codeOut.writeByte(0xc0); // checkcast
+      codeOut.writeShort(cls("[I"));
+      codeOut.writeByte(0x4c); // astore_1
+      pushInt(count);
+      codeOut.writeByte(0xbc); // newarray
+      codeOut.writeByte(10); // int
+      codeOut.writeByte(0x4d); // astore_2
+      push(-1);
+      for (String run : runs) {
+        callHelper(run);
+      }
+      loadTemp(count - 1);
+      codeOut.writeByte(0xac); // ireturn
+      return classFile(NAME, take(), Math.max(maxStack, 3), 3, null);
+    }
+    codeOut.writeByte(0x2b); // aload_1
+    codeOut.writeByte(0xc0); // checkcast
+    codeOut.writeShort(cls("[I"));
+    codeOut.writeByte(0x4c); // astore_1
+    body(split, 0);
+    codeOut.writeByte(0xac); // ireturn
+    return classFile(NAME, take(), Math.max(maxStack, 1), 2, null);
+  }
+
+  // A ToIntFunction whose applyAsInt is apply. With a clinit, the class also gets the field
+  // static final MethodHandle MH for clinit to set.
+  byte[] classFile(String name, byte[] apply, int applyMaxStack, int applyMaxLocals, byte[] clinit) throws IOException {
+    int function = cls("java/util/function/ToIntFunction");
+    ByteArrayOutputStream init = new ByteArrayOutputStream();
+    DataOutputStream initOut = new DataOutputStream(init);
+    initOut.writeByte(0x2a); // aload_0
+    initOut.writeByte(0xb7); // invokespecial
+    initOut.writeShort(method("java/lang/Object", "<init>", "()V"));
+    initOut.writeByte(0xb1); // return
+
+    int self = cls(name);
+    int object = cls("java/lang/Object");
+    ByteArrayOutputStream methods = new ByteArrayOutputStream();
+    DataOutputStream methodsOut = new DataOutputStream(methods);
+    writeMethod(methodsOut, "<init>", "()V", init.toByteArray(), 1, 1);
+    writeMethod(methodsOut, "applyAsInt", "(Ljava/lang/Object;)I", apply, applyMaxStack, applyMaxLocals);
+    if (clinit != null) {
+      writeMethod(methodsOut, ACC_STATIC, "<clinit>", "()V", clinit, 3, 0);
+    }
+    methodsOut.write(helpers.toByteArray());
+
+    ByteArrayOutputStream classFile = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(classFile);
+    out.writeInt(0xCAFEBABE);
+    out.writeShort(0);
+    out.writeShort(VERSION);
+    out.writeShort(poolSize);
+    out.write(pool.toByteArray());
+    out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+    out.writeShort(self);
+    out.writeShort(object);
+    out.writeShort(1);
+    out.writeShort(function);
+    if (clinit != null) {
+      out.writeShort(1);
+      out.writeShort(ACC_PRIVATE | ACC_STATIC | ACC_FINAL);
+      out.writeShort(utf8("MH"));
+      out.writeShort(utf8("L" + HANDLE + ";"));
+      out.writeShort(0); // attributes
+    } else {
+      out.writeShort(0); // fields
+    }
+    if (poolSize > 0xffff) {
+      throw new RuntimeException("Expression too large to assemble: " + poolSize + " constants");
+    }
+    out.writeShort((clinit != null ? 3 : 2) + helperCount);
+    out.write(methods.toByteArray());
+    out.writeShort(0); // attributes
+    return classFile.toByteArray();
+  }
+
+  // A class whose applyAsInt is MH.invokeExact(env), MH being the class data of the hidden class.
+  // MH is a static final field, so the JIT treats the handle as a constant and inlines through it.
+  byte[] invoker() throws IOException {
+    codeOut.writeByte(0xb2); // getstatic
+    codeOut.writeShort(field(INVOKER, "MH", "L" + HANDLE + ";"));
+    codeOut.writeByte(0x2b); // aload_1
+    codeOut.writeByte(0xc0); // checkcast
+    codeOut.writeShort(cls("[I"));
+    codeOut.writeByte(0xb6); // invokevirtual
+    codeOut.writeShort(method(HANDLE, "invokeExact", "([I)I"));
+    codeOut.writeByte(0xac); // ireturn
+
+    ByteArrayOutputStream clinit = new ByteArrayOutputStream();
+    DataOutputStream clinitOut = new DataOutputStream(clinit);
+    clinitOut.writeByte(0xb8); // invokestatic
+    clinitOut.writeShort(method("java/lang/invoke/MethodHandles", "lookup", "()Ljava/lang/invoke/MethodHandles$Lookup;"));
+    clinitOut.writeByte(0x13); // ldc_w
+    clinitOut.writeShort(string("_"));
+    clinitOut.writeByte(0x13); // ldc_w
+    clinitOut.writeShort(cls(HANDLE));
+    clinitOut.writeByte(0xb8); // invokestatic
+    clinitOut.writeShort(method("java/lang/invoke/MethodHandles", "classData",
+      "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/Class;)Ljava/lang/Object;"));
+    clinitOut.writeByte(0xc0); // checkcast
+    clinitOut.writeShort(cls(HANDLE));
+    clinitOut.writeByte(0xb3); // putstatic
+    clinitOut.writeShort(field(INVOKER, "MH", "L" + HANDLE + ";"));
+    clinitOut.writeByte(0xb1); // return
+    return classFile(INVOKER, code.toByteArray(), 2, 2, clinit.toByteArray());
+  }
+
+  @SuppressWarnings("unchecked")
+  static ToIntFunction<int[]> load(byte[] bytes) throws Throwable {
+    MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+    Object instance = lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+    return (ToIntFunction<int[]>) instance;
+  }
+
+  @SuppressWarnings("unchecked")
+  static ToIntFunction<int[]> loadInvoker(MethodHandle handle) throws Throwable {
+    MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClassWithClassData(new Assembler().invoker(), handle, true);
+    Object instance = lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+    return (ToIntFunction<int[]>) instance;
+  }
+}
@@ -0,0 +1,54 @@
+// Evaluating a located expression over a columnar batch of environments, one tree walk per block of rows
+package DefCom.Cal4;
+
+import java.util.Arrays;
+
+class Batch {
+  static final int BLOCK = 1024;
+
+  static final boolean VECTOR = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+
+  static void fill(int[] dst, int val, int length) {Arrays.fill(dst, 0, length, val);}
+
+  static void load(int[] column, int from, int[] dst, int length) {System.arraycopy(column, from, dst, 0, length);}
+
+  static void add(int[] left, int[] right, int[] dst, int length) {
+    if (VECTOR) {
+      VectorOps.add(left, right, dst, length);
+    } else {
+      for (int i = 0; i < length; ++i) {
+        dst[i] = left[i] + right[i];
+      }
+    }
+  }
+
+  static void mul(int[] left, int[] right, int[] dst, int length) {
+    if (VECTOR) {
+      VectorOps.mul(left, right, dst, length);
+    } else {
+      for (int i = 0; i < length; ++i) {
+        dst[i] = left[i] * right[i];
+      }
+    }
+  }
+
+  // columns[slot][row] holds the value of slot in row; out[row] receives the result of row.
+  // Each block is one postorder walk on an explicit stack, so no depth of expr recurses.
+  // A right subtree is one depth below its parent, and is done when the parent exits.
+  static void eval(Cal.LExpr expr, int[][] columns, int[] out) {
+    int[][] scratch = new int[expr.scratchDepth][BLOCK];
+    for (int from = 0; from < out.length; from += BLOCK) {
+      int start = from, length = Math.min(BLOCK, out.length - from);
+      new Cal.LExprWalk() {
+        int depth = 0;
+
+        public void leaf(Cal.LExpr expr) {expr.evalBatch(columns, start, length, scratch, depth);}
+
+        public void middle(Cal.LExpr expr) {++depth;}
+
+        public void exit(Cal.LExpr expr) {expr.evalBatch(columns, start, length, scratch, --depth);}
+      }.walk(expr);
+      System.arraycopy(scratch[0], 0, out, from, length);
+    }
+  }
+}
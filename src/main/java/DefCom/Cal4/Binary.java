@@ -0,0 +1,167 @@
+// A compact binary form of our language, read straight out of a memory-mapped file
+package DefCom.Cal4;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Layout: magic, name table, expression count, then every expression in prefix order.
+// The name table lists Var names in slot order, so a Var is stored as its slot from locate.
+// Sum and Product are stored as the balanced Plus and Mult trees they locate to.
+// Integers are LEB128 varints; literals are zigzag encoded first so small negatives stay small.
+class Binary {
+  static final int MAGIC = 0x44434231; // "DCB1"
+  static final int LIT = 0, PLUS = 1, MULT = 2, VAR = 3;
+
+  static void writeVarint(ByteArrayOutputStream out, int val) {
+    while ((val & ~0x7f) != 0) {
+      out.write((val & 0x7f) | 0x80);
+      val >>>= 7;
+    }
+    out.write(val);
+  }
+
+  static int readVarint(ByteBuffer in) {
+    int val = 0;
+    for (int shift = 0; ; shift += 7) {
+      byte b = in.get();
+      val |= (b & 0x7f) << shift;
+      if (b >= 0) {
+        return val;
+      }
+    }
+  }
+
+  static byte[] write(List<Cal.Expr> exprs) {
+    Loc loc = new Loc();
+    for (Cal.Expr expr : exprs) {
+      Cal.locateIter(expr, loc);
+    }
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.writeBytes(ByteBuffer.allocate(4).putInt(MAGIC).array());
+    writeVarint(out, loc.size());
+    for (int slot = 0; slot < loc.size(); ++slot) {
+      byte[] bytes = loc.name(slot).getBytes(StandardCharsets.UTF_8);
+      writeVarint(out, bytes.length);
+      out.writeBytes(bytes);
+    }
+    writeVarint(out, exprs.size());
+    for (Cal.Expr expr : exprs) {
+      new Cal.ExprWalk() {
+        public void enter(Cal.Expr expr) {out.write(Cal.isPlus(expr) ? PLUS : MULT);}
+
+        public void leaf(Cal.Expr expr) {
+          if (expr instanceof Cal.Lit) {
+            int val = ((Cal.Lit) expr).val;
+            out.write(LIT);
+            writeVarint(out, (val << 1) ^ (val >> 31));
+          } else if (expr instanceof Cal.Var) {
+            out.write(VAR);
+            writeVarint(out, loc.slot(((Cal.Var) expr).id));
+          } else {
+            throw new RuntimeException("Unexpected value: " + expr.getClass());
+          }
+        }
+      }.walk(expr);
+    }
+    return out.toByteArray();
+  }
+
+  static void write(List<Cal.Expr> exprs, Path path) throws IOException {Files.write(path, write(exprs));}
+
+  // The returned buffer is backed by the page cache; nothing is copied onto the heap until it is decoded.
+  static ByteBuffer map(Path path) throws IOException {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+  }
+
+  static String[] readNames(ByteBuffer in) {
+    if (in.getInt() != MAGIC) {
+      throw new RuntimeException("Not a DefCom binary expression file");
+    }
+    String[] names = new String[readVarint(in)];
+    for (int i = 0; i < names.length; ++i) {
+      byte[] bytes = new byte[readVarint(in)];
+      in.get(bytes);
+      names[i] = new String(bytes, StandardCharsets.UTF_8);
+    }
+    return names;
+  }
+
+  // Decodes one prefix-ordered expression with explicit stacks, so depth is not limited by the Java stack.
+  static <T> T read(ByteBuffer in, JSONReader.Builder<T> builder, String[] names) {
+    int[] ops = new int[64];
+    int[] seen = new int[64];
+    ArrayList<T> values = new ArrayList<>();
+    int top = 0;
+    while (true) {
+      int op = in.get();
+      T node;
+      switch (op) {
+        case LIT -> {
+          int zigzag = readVarint(in);
+          node = builder.lit((zigzag >>> 1) ^ -(zigzag & 1));
+        }
+        case VAR -> node = builder.var(names[readVarint(in)]);
+        case PLUS, MULT -> {
+          if (top == ops.length) {
+            ops = Arrays.copyOf(ops, top * 2);
+            seen = Arrays.copyOf(seen, top * 2);
+          }
+          ops[top] = op;
+          seen[top] = 0;
+          ++top;
+          continue;
+        }
+        default -> throw new RuntimeException("Unexpected opcode: " + op);
+      }
+      while (true) {
+        if (top == 0) {
+          return node;
+        }
+        values.add(node);
+        if (++seen[top - 1] < 2) {
+          break;
+        }
+        T right = values.remove(values.size() - 1);
+        T left = values.remove(values.size() - 1);
+        node = ops[--top] == PLUS ? builder.plus(left, right) : builder.mult(left, right);
+      }
+    }
+  }
+
+  static List<Cal.Expr> readExprs(ByteBuffer in) {
+    String[] names = readNames(in);
+    int count = readVarint(in);
+    List<Cal.Expr> exprs = new ArrayList<>(count);
+    for (int i = 0; i < count; ++i) {
+      exprs.add(read(in, JSONReader.EXPR, names));
+    }
+    return exprs;
+  }
+
+  // When loc is empty, the slots come out exactly as stored; otherwise names are mapped into loc.
+  static List<Cal.LExpr> readLocated(ByteBuffer in, Loc loc) {
+    String[] names = readNames(in);
+    JSONReader.Builder<Cal.LExpr> builder = JSONReader.located(loc);
+    for (String name : names) {
+      builder.var(name);
+    }
+    int count = readVarint(in);
+    List<Cal.LExpr> exprs = new ArrayList<>(count);
+    for (int i = 0; i < count; ++i) {
+      exprs.add(read(in, builder, names));
+    }
+    return exprs;
+  }
+}
@@ -1,27 +1,65 @@
 // Deriving a staged definitional interpreter
 package DefCom.Cal4;
 
+import DefCom.Util.Fold;
+import DefCom.Util.Metrics;
+import DefCom.Util.Walk;
+
 import javax.tools.JavaCompiler;
 import javax.tools.ToolProvider;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.net.URL;
 import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.function.Function;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
+import java.util.function.ToIntFunction;
 
 public class Cal {
   abstract static class Expr {
-    abstract LExpr located(Map<String, Integer> loc);
+    abstract LExpr located(Loc loc);
+
+    abstract void locate(Loc loc);
 
-    abstract void locate(Map<String, Integer> loc);
+    // Replaces every Var bound in known by its value and folds the constants that creates.
+    abstract Expr specialize(Env known);
   }
 
   abstract static class LExpr {
+    // Number of nodes in this subtree, fixed when the tree is built.
+    int size = 1;
+    // Scratch rows Batch.eval needs for this subtree, fixed the same way.
+    int scratchDepth = 1;
+
     abstract int eval(int[] env);
 
     abstract String compile();
+
+    // Emits this node's own instruction; Assembler walks the tree and calls it after the children.
+    abstract void assemble(Assembler asm) throws IOException;
+
+    // Fills scratch[depth] with the values of rows [from, from + length): a leaf from itself, Plus and Mult
+    // from their children's, already in scratch[depth] and scratch[depth + 1]. Batch.eval walks the tree.
+    // A left child reuses its parent's depth, so left-leaning chains need very little scratch.
+    abstract void evalBatch(int[][] columns, int from, int length, int[][] scratch, int depth);
   }
 
   static class Lit extends Expr {
@@ -31,17 +69,11 @@ public class Cal {
 
     public String toString() {return String.valueOf(val);}
 
-    LExpr located(Map<String, Integer> loc) {
-      return new LExpr() {
-        int eval(int[] env) {
-          return val;
-        }
+    LExpr located(Loc loc) {return new LLit(val);}
 
-        String compile() {return String.valueOf(val);}
-      };
-    }
+    void locate(Loc loc) {}
 
-    void locate(Map<String, Integer> loc) {}
+    Expr specialize(Env known) {return this;}
   }
 
   static Expr mkLit(int val) {return new Lit(val);}
@@ -56,24 +88,18 @@ public class Cal {
 
     public String toString() {return "(" + left.toString() + "+" + right.toString() + ")";}
 
-    LExpr located(Map<String, Integer> loc) {
+    LExpr located(Loc loc) {
       LExpr left = this.left.located(loc);
       LExpr right = this.right.located(loc);
-      return new LExpr() {
-        int eval(int[] env) {
-          return left.eval(env) + right.eval(env);
-        }
-
-        String compile() {
-          return "(" + left.compile() + "+" + right.compile() + ")";
-        }
-      };
+      return new LPlus(left, right);
     }
 
-    void locate(Map<String, Integer> loc) {
+    void locate(Loc loc) {
       left.locate(loc);
       right.locate(loc);
     }
+
+    Expr specialize(Env known) {return specializeIter(this, known);}
   }
 
   static Expr mkPlus(Expr left, Expr right) {return new Plus(left, right);}
@@ -88,56 +114,444 @@ public class Cal {
 
     public String toString() {return "(" + left.toString() + "*" + right.toString() + ")";}
 
-    LExpr located(Map<String, Integer> loc) {
+    LExpr located(Loc loc) {
       LExpr left = this.left.located(loc);
       LExpr right = this.right.located(loc);
-      return new LExpr() {
-        int eval(int[] env) {
-          return left.eval(env) * right.eval(env);
-        }
-
-        String compile() {
-          return "(" + left.compile() + "*" + right.compile() + ")";
-        }
-      };
+      return new LMult(left, right);
     }
 
-    void locate(Map<String, Integer> loc) {
+    void locate(Loc loc) {
       left.locate(loc);
       right.locate(loc);
     }
+
+    Expr specialize(Env known) {return specializeIter(this, known);}
   }
 
   static Expr mkMult(Expr left, Expr right) {return new Mult(left, right);}
 
   static class Var extends Expr {
     String name;
+    // Interned once here, so locate and specialize never look at the name again.
+    final int id;
 
-    Var(String name) {this.name = name;}
+    Var(String name) {
+      this.name = name;
+      this.id = Symbol.intern(name);
+    }
 
     public String toString() {return name;}
 
-    LExpr located(Map<String, Integer> loc) {
-      int idx = loc.get(name);
-      return new LExpr() {
-        int eval(int[] env) {
-          return env[idx];
+    LExpr located(Loc loc) {
+      int slot = loc.slot(id);
+      if (slot < 0) {
+        throw new RuntimeException("Unlocated variable: " + name);
+      }
+      return new LVar(slot);
+    }
+
+    void locate(Loc loc) {loc.add(id);}
+
+    Expr specialize(Env known) {
+      int i = known.indexOf(id);
+      return i < 0 ? this : mkLit(known.get(i));
+    }
+  }
+
+  static Expr mkVar(String name) {return new Var(name);}
+
+  // The same folding rules as Cal2's simp, shared through Fold.
+  static final Fold<Expr> FOLD = new Fold<>() {
+    public boolean isLit(Expr expr) {return expr instanceof Lit;}
+
+    public int val(Expr expr) {return ((Lit) expr).val;}
+
+    public Expr lit(int val) {return mkLit(val);}
+
+    public Expr plus(Expr left, Expr right) {return mkPlus(left, right);}
+
+    public Expr mult(Expr left, Expr right) {return mkMult(left, right);}
+  };
+
+  static Expr simpPlus(Expr left, Expr right) {return FOLD.simpPlus(left, right);}
+
+  static Expr simpMult(Expr left, Expr right) {return FOLD.simpMult(left, right);}
+
+  // n-ary forms of Plus and Mult, produced by reassociate. They locate to balanced trees,
+  // so evaluation and generated code have logarithmic rather than linear depth.
+  abstract static class NAry extends Expr {
+    Expr[] terms;
+
+    NAry(Expr[] terms) {this.terms = terms;}
+
+    abstract char op();
+
+    abstract LExpr combine(LExpr left, LExpr right);
+
+    abstract int identity();
+
+    abstract int fold(int left, int right);
+
+    abstract NAry make(Expr[] terms);
+
+    // The two subtrees located pairs up last: the left one holds the largest power of two of terms
+    // below terms.length. Walking these halves visits exactly the tree that located builds.
+    Expr half(boolean right) {
+      int split = Integer.highestOneBit(terms.length - 1);
+      return right ? slice(split, terms.length) : slice(0, split);
+    }
+
+    Expr slice(int from, int to) {return to - from == 1 ? terms[from] : make(Arrays.copyOfRange(terms, from, to));}
+
+    public String toString() {
+      StringBuilder sb = new StringBuilder("(");
+      for (int i = 0; i < terms.length; ++i) {
+        if (i > 0) sb.append(op());
+        sb.append(terms[i]);
+      }
+      return sb.append(")").toString();
+    }
+
+    LExpr located(Loc loc) {
+      LExpr[] level = new LExpr[terms.length];
+      for (int i = 0; i < terms.length; ++i) {
+        level[i] = terms[i].located(loc);
+      }
+      for (int length = level.length; length > 1; length = (length + 1) / 2) {
+        for (int i = 0; i < length / 2; ++i) {
+          level[i] = combine(level[2 * i], level[2 * i + 1]);
+        }
+        if (length % 2 == 1) {
+          level[length / 2] = level[length - 1];
         }
+      }
+      return level[0];
+    }
 
-        String compile() {return "env[" + idx + "]";}
-      };
+    void locate(Loc loc) {
+      for (Expr term : terms) {
+        term.locate(loc);
+      }
     }
 
-    void locate(Map<String, Integer> loc) {
-      if (!loc.containsKey(name)) {
-        loc.put(name, loc.size());
+    Expr specialize(Env known) {
+      int acc = identity();
+      ArrayList<Expr> rest = new ArrayList<>();
+      for (Expr term : terms) {
+        Expr t = term.specialize(known);
+        if (t instanceof Lit) {
+          acc = fold(acc, ((Lit) t).val);
+        } else {
+          rest.add(t);
+        }
+      }
+      if (rest.isEmpty() || (this instanceof Product && acc == 0)) {
+        return mkLit(acc);
       }
+      if (acc != identity()) {
+        rest.add(mkLit(acc));
+      }
+      return rest.size() == 1 ? rest.get(0) : make(rest.toArray(new Expr[0]));
     }
   }
 
-  static Expr mkVar(String name) {return new Var(name);}
+  static class Sum extends NAry {
+    Sum(Expr[] terms) {super(terms);}
+
+    char op() {return '+';}
+
+    LExpr combine(LExpr left, LExpr right) {return new LPlus(left, right);}
+
+    int identity() {return 0;}
+
+    int fold(int left, int right) {return left + right;}
+
+    NAry make(Expr[] terms) {return new Sum(terms);}
+  }
+
+  static class Product extends NAry {
+    Product(Expr[] terms) {super(terms);}
+
+    char op() {return '*';}
+
+    LExpr combine(LExpr left, LExpr right) {return new LMult(left, right);}
+
+    int identity() {return 1;}
+
+    int fold(int left, int right) {return left * right;}
+
+    NAry make(Expr[] terms) {return new Product(terms);}
+  }
+
+  // Flattens every maximal chain of Plus (or Mult) into one Sum (or Product).
+  // Int addition and multiplication wrap, so they are associative and regrouping is exact.
+  // Recursion only happens where Plus and Mult alternate, not along a chain.
+  static Expr reassociate(Expr expr) {
+    if (!(expr instanceof Plus) && !(expr instanceof Mult)) {
+      return expr;
+    }
+    boolean plus = expr instanceof Plus;
+    ArrayList<Expr> terms = new ArrayList<>();
+    ArrayDeque<Expr> stack = new ArrayDeque<>();
+    stack.push(expr);
+    while (!stack.isEmpty()) {
+      Expr node = stack.pop();
+      if (plus && node instanceof Plus) {
+        stack.push(((Plus) node).right);
+        stack.push(((Plus) node).left);
+      } else if (!plus && node instanceof Mult) {
+        stack.push(((Mult) node).right);
+        stack.push(((Mult) node).left);
+      } else {
+        terms.add(reassociate(node));
+      }
+    }
+    Expr[] array = terms.toArray(new Expr[0]);
+    return plus ? new Sum(array) : new Product(array);
+  }
+
+  static class LLit extends LExpr {
+    final int val;
+
+    LLit(int val) {this.val = val;}
+
+    int eval(int[] env) {
+      return val;
+    }
+
+    String compile() {return String.valueOf(val);}
+
+    void assemble(Assembler asm) throws IOException {asm.pushInt(val);}
+
+    void evalBatch(int[][] columns, int from, int length, int[][] scratch, int depth) {
+      Batch.fill(scratch[depth], val, length);
+    }
+  }
+
+  static class LPlus extends LExpr {
+    final LExpr left, right;
+
+    LPlus(LExpr left, LExpr right) {
+      this.left = left;
+      this.right = right;
+      this.size = 1 + left.size + right.size;
+      this.scratchDepth = Math.max(left.scratchDepth, right.scratchDepth + 1);
+    }
+
+    int eval(int[] env) {
+      return left.eval(env) + right.eval(env);
+    }
+
+    String compile() {
+      return "(" + left.compile() + "+" + right.compile() + ")";
+    }
+
+    void assemble(Assembler asm) throws IOException {asm.add();}
+
+    void evalBatch(int[][] columns, int from, int length, int[][] scratch, int depth) {
+      Batch.add(scratch[depth], scratch[depth + 1], scratch[depth], length);
+    }
+  }
+
+  static class LMult extends LExpr {
+    final LExpr left, right;
+
+    LMult(LExpr left, LExpr right) {
+      this.left = left;
+      this.right = right;
+      this.size = 1 + left.size + right.size;
+      this.scratchDepth = Math.max(left.scratchDepth, right.scratchDepth + 1);
+    }
+
+    int eval(int[] env) {
+      return left.eval(env) * right.eval(env);
+    }
+
+    String compile() {
+      return "(" + left.compile() + "*" + right.compile() + ")";
+    }
+
+    void assemble(Assembler asm) throws IOException {asm.mul();}
+
+    void evalBatch(int[][] columns, int from, int length, int[][] scratch, int depth) {
+      Batch.mul(scratch[depth], scratch[depth + 1], scratch[depth], length);
+    }
+  }
+
+  static class LVar extends LExpr {
+    final int idx;
+
+    LVar(int idx) {this.idx = idx;}
+
+    int eval(int[] env) {
+      return env[idx];
+    }
+
+    String compile() {return "env[" + idx + "]";}
+
+    void assemble(Assembler asm) throws IOException {asm.loadSlot(idx);}
+
+    void evalBatch(int[][] columns, int from, int length, int[][] scratch, int depth) {
+      Batch.load(columns[idx], from, scratch[depth], length);
+    }
+  }
+
+  // Explicit-stack versions of the traversals above, for expressions too deep for the Java stack.
+  // They visit nodes in the same order, so locateIter assigns the same slots as locate.
+  // A Sum or Product is walked as the balanced tree it locates to, so isPlus tells the operator.
+  abstract static class ExprWalk extends Walk<Expr> {
+    public Expr left(Expr expr) {
+      if (expr instanceof Plus) return ((Plus) expr).left;
+      if (expr instanceof Mult) return ((Mult) expr).left;
+      if (expr instanceof NAry) return ((NAry) expr).half(false);
+      return null;
+    }
+
+    public Expr right(Expr expr) {
+      if (expr instanceof Plus) return ((Plus) expr).right;
+      if (expr instanceof NAry) return ((NAry) expr).half(true);
+      return ((Mult) expr).right;
+    }
+  }
+
+  static boolean isPlus(Expr expr) {return expr instanceof Plus || expr instanceof Sum;}
+
+  abstract static class LExprWalk extends Walk<LExpr> {
+    public LExpr left(LExpr expr) {
+      if (expr instanceof LPlus) return ((LPlus) expr).left;
+      if (expr instanceof LMult) return ((LMult) expr).left;
+      return null;
+    }
+
+    public LExpr right(LExpr expr) {
+      if (expr instanceof LPlus) return ((LPlus) expr).right;
+      return ((LMult) expr).right;
+    }
+  }
+
+  static String ppIter(Expr expr) {
+    StringBuilder sb = new StringBuilder();
+    new ExprWalk() {
+      public void leaf(Expr expr) {sb.append(expr);}
+
+      public void enter(Expr expr) {sb.append('(');}
+
+      public void middle(Expr expr) {sb.append(isPlus(expr) ? '+' : '*');}
+
+      public void exit(Expr expr) {sb.append(')');}
+    }.walk(expr);
+    return sb.toString();
+  }
+
+  static void locateIter(Expr expr, Loc loc) {
+    new ExprWalk() {
+      public void leaf(Expr expr) {expr.locate(loc);}
+    }.walk(expr);
+  }
+
+  static LExpr locatedIter(Expr expr, Loc loc) {
+    ArrayList<LExpr> stack = new ArrayList<>();
+    new ExprWalk() {
+      public void leaf(Expr expr) {stack.add(expr.located(loc));}
+
+      public void exit(Expr expr) {
+        LExpr right = stack.remove(stack.size() - 1);
+        LExpr left = stack.remove(stack.size() - 1);
+        stack.add(isPlus(expr) ? new LPlus(left, right) : new LMult(left, right));
+      }
+    }.walk(expr);
+    return stack.get(0);
+  }
+
+  // The way to locate from outside the engines: safe at any depth, and recorded in Metrics.
+  static LExpr locate(Expr expr, Loc loc) {
+    Metrics.Locate event = new Metrics.Locate();
+    locateIter(expr, loc);
+    LExpr located = locatedIter(expr, loc);
+    event.done(loc.size(), located.size);
+    return located;
+  }
+
+  static String compileIter(LExpr expr) {
+    StringBuilder sb = new StringBuilder();
+    new LExprWalk() {
+      public void leaf(LExpr expr) {sb.append(expr.compile());}
+
+      public void enter(LExpr expr) {sb.append('(');}
+
+      public void middle(LExpr expr) {sb.append(expr instanceof LPlus ? '+' : '*');}
+
+      public void exit(LExpr expr) {sb.append(')');}
+    }.walk(expr);
+    return sb.toString();
+  }
+
+  // Same walk as Walk.walk, specialized to int values so nothing is boxed.
+  static int evalIter(LExpr expr, int[] env) {
+    LExpr[] nodes = new LExpr[64];
+    boolean[] inRight = new boolean[64];
+    int[] values = new int[64];
+    int top = 0, sp = 0;
+    LExpr node = expr;
+    while (true) {
+      while (node instanceof LPlus || node instanceof LMult) {
+        if (top == nodes.length) {
+          nodes = Arrays.copyOf(nodes, top * 2);
+          inRight = Arrays.copyOf(inRight, top * 2);
+        }
+        nodes[top] = node;
+        inRight[top] = false;
+        ++top;
+        node = node instanceof LPlus ? ((LPlus) node).left : ((LMult) node).left;
+      }
+      if (sp == values.length) {
+        values = Arrays.copyOf(values, sp * 2);
+      }
+      values[sp++] = node instanceof LLit ? ((LLit) node).val : env[((LVar) node).idx];
+      while (top > 0 && inRight[top - 1]) {
+        LExpr done = nodes[--top];
+        int right = values[--sp];
+        values[sp - 1] = done instanceof LPlus ? values[sp - 1] + right : values[sp - 1] * right;
+      }
+      if (top == 0) {
+        return values[0];
+      }
+      inRight[top - 1] = true;
+      node = nodes[top - 1] instanceof LPlus ? ((LPlus) nodes[top - 1]).right : ((LMult) nodes[top - 1]).right;
+    }
+  }
+
+  static final Metrics.Calls CLOSURE_CALLS = Metrics.calls("closure"), ITER_CALLS = Metrics.calls("iter");
+
+  // What to run while there is no generated code: the closures when expr is shallow enough for them,
+  // evalIter otherwise. A tree of at most Parallel.SHALLOW nodes is at most that deep.
+  // Calls are counted here rather than in LExpr.eval, which runs once per node.
+  static ToIntFunction<int[]> fallback(LExpr expr) {
+    if (expr.size <= Parallel.SHALLOW) {
+      return env -> {
+        CLOSURE_CALLS.tick();
+        return expr.eval(env);
+      };
+    }
+    return env -> {
+      ITER_CALLS.tick();
+      return evalIter(expr, env);
+    };
+  }
+
+  // The Vars matrix_i_j, each named and interned once and then shared by every use.
+  static Expr[][] getExampleVars(String matrix, int n) {
+    Expr[][] vars = new Expr[n][n];
+    for (int i = 0; i < n; ++i) {
+      for (int j = 0; j < n; ++j) {
+        vars[i][j] = mkVar(matrix + "_" + i + "_" + j);
+      }
+    }
+    return vars;
+  }
 
   static Expr getExample(int n) {
+    Expr[][] a = getExampleVars("a", n), b = getExampleVars("b", n);
     Expr ret = mkLit(0);
     for (int i = 0; i < n; ++i) {
       for (int j = 0; j < n; ++j) {
@@ -145,7 +559,7 @@ public class Cal {
         for (int k = 0; k < n; ++k) {
           dotProd = mkPlus(
             dotProd,
-            mkMult(mkVar("a_%s_%s".formatted(i, k)), mkVar("b_%s_%s".formatted(k, j))));
+            mkMult(a[i][k], b[k][j]));
         }
         ret = mkPlus(ret, dotProd);
       }
@@ -153,72 +567,572 @@ public class Cal {
     return ret;
   }
 
-  static Map<String, Integer> getExampleEnv(int n) {
-    HashMap<String, Integer> ret = new HashMap<>();
+  // Every cell of the matrix product, built like the dot products inside getExample.
+  static List<Expr> getExampleCells(int n) {
+    Expr[][] a = getExampleVars("a", n), b = getExampleVars("b", n);
+    ArrayList<Expr> cells = new ArrayList<>();
     for (int i = 0; i < n; ++i) {
       for (int j = 0; j < n; ++j) {
-        ret.put("a_%s_%s".formatted(i, j), 1);
-        ret.put("b_%s_%s".formatted(i, j), 1);
+        Expr dotProd = mkLit(0);
+        for (int k = 0; k < n; ++k) {
+          dotProd = mkPlus(
+            dotProd,
+            mkMult(a[i][k], b[k][j]));
+        }
+        cells.add(dotProd);
+      }
+    }
+    return cells;
+  }
+
+  // The sum of cell(i, j) * cell(j, i): every dot product appears twice, and with i == j squared.
+  static Expr getExampleTrace(int n) {
+    List<Expr> cells = getExampleCells(n);
+    Expr ret = mkLit(0);
+    for (int i = 0; i < n; ++i) {
+      for (int j = 0; j < n; ++j) {
+        ret = mkPlus(ret, mkMult(cells.get(i * n + j), cells.get(j * n + i)));
       }
     }
     return ret;
   }
 
-  static int[] envToLocEnv(Map<String, Integer> env, Map<String, Integer> loc) {
-    int[] arr = new int[loc.size()];
-    for (Map.Entry<String, Integer> x : loc.entrySet()) {
-      arr[x.getValue()] = env.get(x.getKey());
+  // Sum and Product are written as the balanced Plus and Multiply trees they locate to.
+  static void toJSON(Expr expr, StringBuilder sb) {
+    new ExprWalk() {
+      public void leaf(Expr expr) {
+        if (expr instanceof Lit) {
+          sb.append("{type: 'Literal', value: ").append(((Lit) expr).val).append("}");
+        } else if (expr instanceof Var) {
+          sb.append("{type: 'Variable', name: '").append(((Var) expr).name).append("'}");
+        } else {
+          throw new RuntimeException("Unexpected value: " + expr.getClass());
+        }
+      }
+
+      public void enter(Expr expr) {sb.append(isPlus(expr) ? "{type: 'Plus', left: " : "{type: 'Multiply', left: ");}
+
+      public void middle(Expr expr) {sb.append(", right: ");}
+
+      public void exit(Expr expr) {sb.append("}");}
+    }.walk(expr);
+  }
+
+  static String getExampleJSON(int n) {
+    StringBuilder sb = new StringBuilder();
+    toJSON(getExample(n), sb);
+    return sb.toString();
+  }
+
+  static Expr readExpr(Reader in) throws IOException {return new JSONReader(in).read(JSONReader.EXPR);}
+
+  static LExpr readLocated(Reader in, Loc loc) throws IOException {
+    return new JSONReader(in).read(JSONReader.located(loc));
+  }
+
+  static Env getExampleEnv(int n) {
+    Env ret = new Env();
+    for (int i = 0; i < n; ++i) {
+      for (int j = 0; j < n; ++j) {
+        ret.put("a_" + i + "_" + j, 1);
+        ret.put("b_" + i + "_" + j, 1);
+      }
     }
-    return arr;
+    return ret;
   }
 
+  static int[] envToLocEnv(Env env, Loc loc) {return env.bind(loc);}
+
   public static void profileLocatedEval(int n, int length) {
     Expr example = getExample(n);
-    Map<String, Integer> env = getExampleEnv(n);
-    Map<String, Integer> loc = new HashMap<>();
-    example.locate(loc);
-    LExpr located = example.located(loc);
+    Env env = getExampleEnv(n);
+    Loc loc = new Loc();
+    LExpr located = locate(example, loc);
     int[] locEnv = envToLocEnv(env, loc);
+    Metrics.Eval event = new Metrics.Eval("closure");
     for (int i = 0; i < length; ++i) {
       located.eval(locEnv);
     }
+    event.done(length);
+  }
+
+  public static void profileReadLocated(int n, int length) throws IOException {
+    String json = getExampleJSON(n);
+    Env env = getExampleEnv(n);
+    Metrics.Eval event = new Metrics.Eval("json");
+    for (int i = 0; i < length; ++i) {
+      Loc loc = new Loc();
+      LExpr located = readLocated(new StringReader(json), loc);
+      located.eval(envToLocEnv(env, loc));
+    }
+    event.done(length);
+  }
+
+  public static void profileDeep(int n) {
+    Expr example = getExample(n);
+    Env env = getExampleEnv(n);
+    Loc loc = new Loc();
+    LExpr located = locate(example, loc);
+    System.out.printf("Deep example of %s characters evaluates to %s%n",
+      compileIter(located).length(), evalIter(located, envToLocEnv(env, loc)));
+  }
+
+  public static void profileBinary(int n, int length) throws IOException {
+    Path path = Files.createTempFile("example", ".dcb");
+    try {
+      Binary.write(List.of(getExample(n)), path);
+      Env env = getExampleEnv(n);
+      Metrics.Eval event = new Metrics.Eval("binary");
+      for (int i = 0; i < length; ++i) {
+        Loc loc = new Loc();
+        LExpr located = Binary.readLocated(Binary.map(path), loc).get(0);
+        located.eval(envToLocEnv(env, loc));
+      }
+      event.done(length);
+    } finally {
+      Files.delete(path);
+    }
+  }
+
+  public static void profileInterp(int n, int length) {
+    Expr example = getExample(n);
+    Env env = getExampleEnv(n);
+    Loc loc = new Loc();
+    Interp interp = Interp.lower(locate(example, loc));
+    int[] locEnv = envToLocEnv(env, loc);
+    Metrics.Eval event = new Metrics.Eval("interp");
+    for (int i = 0; i < length; ++i) {
+      interp.eval(locEnv);
+    }
+    event.done(length);
+  }
+
+  public static void profileTiered(int n, int length) {
+    try (Tiered tiered = new Tiered(getExample(n), 1024 * 1024)) {
+      int[] locEnv = envToLocEnv(getExampleEnv(n), tiered.loc);
+      Metrics.Eval event = new Metrics.Eval("tiered");
+      for (int i = 0; i < length; ++i) {
+        tiered.eval(locEnv);
+      }
+      event.done(length);
+    }
+  }
+
+  // More distinct shapes than Tiered.CACHE holds, each promoted in turn. The first one's cache entry
+  // is long evicted by the end, but its Tiered still owns the Handle, so it must still run compiled.
+  public static void profileTieredCache(int shapes) {
+    Expr example = getExample(2);
+    ArrayList<Tiered> tiereds = new ArrayList<>();
+    try {
+      for (int i = 0; i < shapes; ++i) {
+        Tiered tiered = new Tiered(mkPlus(example, mkLit(i)), 1, Runnable::run, Tiered.CACHE);
+        tiereds.add(tiered);
+        tiered.eval(envToLocEnv(getExampleEnv(2), tiered.loc));
+      }
+      Tiered first = tiereds.get(0);
+      if (first.tier.get() != Tiered.COMPILED || !first.handle.open()) {
+        throw new RuntimeException("Unexpected value: " + first.tier.get());
+      }
+      System.out.printf("TieredCache: %s shapes, %s%n", shapes, Tiered.CACHE);
+    } finally {
+      for (Tiered tiered : tiereds) {
+        tiered.close();
+      }
+    }
+  }
+
+  public static void profileParallel(int n, int length) {
+    Expr example = getExample(n);
+    Loc loc = new Loc();
+    LExpr located = locate(example, loc);
+    Parallel parallel = new Parallel(located);
+    int[] locEnv = envToLocEnv(getExampleEnv(n), loc);
+    Metrics.Eval event = new Metrics.Eval("parallel");
+    for (int i = 0; i < length; ++i) {
+      parallel.eval(locEnv);
+    }
+    event.done(length);
+  }
+
+  public static void profileReassociated(int n, int length) throws Throwable {
+    Expr example = reassociate(getExample(n));
+    Env env = getExampleEnv(n);
+    Loc loc = new Loc();
+    LExpr located = locate(example, loc);
+    ToIntFunction<int[]> compiled = javac(located);
+    int[] locEnv = envToLocEnv(env, loc);
+    Metrics.Eval event = new Metrics.Eval("reassociated");
+    for (int i = 0; i < length; ++i) {
+      compiled.applyAsInt(locEnv);
+    }
+    event.done(length);
+  }
+
+  public static void profileIncremental(int n, int length) {
+    Expr example = getExample(n);
+    Loc loc = new Loc();
+    LExpr located = locate(example, loc);
+    int[] locEnv = envToLocEnv(getExampleEnv(n), loc);
+    Incremental incremental = new Incremental(located, locEnv);
+    Metrics.Eval event = new Metrics.Eval("incremental");
+    for (int i = 0; i < length; ++i) {
+      incremental.update(i % locEnv.length, i);
+    }
+    event.done(length);
+  }
+
+  // Plus and Mult are walked on an explicit stack and rebuilt at exit; anything else is a leaf here
+  // and specializes itself. So only a Sum or Product nested in another recurses, as in reassociate.
+  static Expr specializeIter(Expr expr, Env known) {
+    ArrayList<Expr> stack = new ArrayList<>();
+    new Walk<Expr>() {
+      public Expr left(Expr expr) {
+        if (expr instanceof Plus) return ((Plus) expr).left;
+        if (expr instanceof Mult) return ((Mult) expr).left;
+        return null;
+      }
+
+      public Expr right(Expr expr) {
+        if (expr instanceof Plus) return ((Plus) expr).right;
+        return ((Mult) expr).right;
+      }
+
+      public void leaf(Expr expr) {stack.add(expr.specialize(known));}
+
+      public void exit(Expr expr) {
+        Expr right = stack.remove(stack.size() - 1);
+        Expr left = stack.remove(stack.size() - 1);
+        stack.add(expr instanceof Plus ? simpPlus(left, right) : simpMult(left, right));
+      }
+    }.walk(expr);
+    return stack.get(0);
+  }
+
+  // Stages on values as well as layout: loc receives slots for the remaining dynamic Vars only.
+  static LExpr specialize(Expr expr, Env known, Loc loc) {
+    return locate(expr.specialize(known), loc);
+  }
+
+  public static void profileSpecialize(int n, int length) throws Throwable {
+    Expr example = getExample(n);
+    Env env = getExampleEnv(n);
+    Env known = new Env();
+    for (int slot = 0; slot < env.size(); ++slot) {
+      if (env.loc.name(slot).startsWith("a_")) {
+        known.put(env.loc.symbol(slot), env.get(slot));
+      }
+    }
+    Loc loc = new Loc();
+    ToIntFunction<int[]> compiled = asm(specialize(example, known, loc));
+    int[] locEnv = envToLocEnv(env, loc);
+    Metrics.Eval event = new Metrics.Eval("specialized");
+    for (int i = 0; i < length; ++i) {
+      compiled.applyAsInt(locEnv);
+    }
+    event.done(length);
+  }
+
+  // At n = 64, one nested call per outlined method would overflow the main thread's stack; the flat calls do not.
+  public static void profileSplitCompile(int n, int length) throws Throwable {
+    Expr example = getExample(n);
+    Loc loc = new Loc();
+    LExpr located = locate(example, loc);
+    ToIntFunction<int[]> compiled = javac(located);
+    int[] locEnv = envToLocEnv(getExampleEnv(n), loc);
+    if (compiled.applyAsInt(locEnv) != evalIter(located, locEnv)) {
+      throw new RuntimeException("Unexpected value: " + compiled.applyAsInt(locEnv));
+    }
+    Metrics.Eval event = new Metrics.Eval("split");
+    for (int i = 0; i < length; ++i) {
+      compiled.applyAsInt(locEnv);
+    }
+    event.done(length);
   }
 
   public static void profileLocatedCompile(int n, int length) throws Throwable {
     Expr example = getExample(n);
-    Map<String, Integer> env = getExampleEnv(n);
-    Map<String, Integer> loc = new HashMap<>();
-    example.locate(loc);
-    LExpr located = example.located(loc);
-    Function<int[], Integer> compiled = javac(located.compile());
+    Env env = getExampleEnv(n);
+    Loc loc = new Loc();
+    LExpr located = locate(example, loc);
+    ToIntFunction<int[]> compiled = javac(located);
+    int[] locEnv = envToLocEnv(env, loc);
+    Metrics.Eval event = new Metrics.Eval("javac");
+    for (int i = 0; i < length; ++i) {
+      compiled.applyAsInt(locEnv);
+    }
+    event.done(length);
+  }
+
+  // Every cell plus their sum, in one class. The sum is built from the very same dot products,
+  // so it shares all of them and costs only the final additions.
+  public static void profileMultiCompile(int n, int length) throws Throwable {
+    List<Expr> outputs = new ArrayList<>(getExampleCells(n));
+    outputs.add(getExample(n));
+    Loc loc = new Loc();
+    for (Expr expr : outputs) {
+      expr.locate(loc);
+    }
+    ArrayList<LExpr> located = new ArrayList<>();
+    for (Expr expr : outputs) {
+      located.add(expr.located(loc));
+    }
+    BiConsumer<int[], int[]> compiled = compileMulti(located);
+    int[] locEnv = envToLocEnv(getExampleEnv(n), loc);
+    int[] out = new int[outputs.size()];
+    Metrics.Eval event = new Metrics.Eval("multi");
+    for (int i = 0; i < length; ++i) {
+      compiled.accept(locEnv, out);
+    }
+    event.done(length);
+  }
+
+  // The Split source repeats every dot product; the CSE source computes each once.
+  public static void profileCSECompile(int n, int length) throws Throwable {
+    Expr example = getExampleTrace(n);
+    Loc loc = new Loc();
+    LExpr located = locate(example, loc);
+    int[] locEnv = envToLocEnv(getExampleEnv(n), loc);
+    String split = Split.source(located), cse = Multi.source(located);
+    long time0 = System.currentTimeMillis();
+    ToIntFunction<int[]> plain = javac(located);
+    long time1 = System.currentTimeMillis();
+    ToIntFunction<int[]> compiled = compileCSE(located);
+    long time2 = System.currentTimeMillis();
+    System.out.printf("Split source %s chars, javac took %s%n", split.length(), time1 - time0);
+    System.out.printf("CSE source %s chars, javac took %s%n", cse.length(), time2 - time1);
+    if (plain.applyAsInt(locEnv) != compiled.applyAsInt(locEnv)) {
+      throw new RuntimeException("Unexpected value: " + compiled.applyAsInt(locEnv));
+    }
+    Metrics.Eval event = new Metrics.Eval("cse");
+    for (int i = 0; i < length; ++i) {
+      compiled.applyAsInt(locEnv);
+    }
+    event.done(length);
+  }
+
+  // threads virtual threads share one registered expression, each through its own Session,
+  // then one loopback client registers and evaluates over the line protocol: a small expression,
+  // and a chain deep levels deep, which must work like any other.
+  public static void profileService(int n, int length, int threads, int deep) throws Throwable {
+    Service service = new Service();
+    service.register("example", getExample(n));
+    Env env = getExampleEnv(n);
+    String[] names = new String[env.size()];
+    int[] values = new int[env.size()];
+    for (int slot = 0; slot < env.size(); ++slot) {
+      names[slot] = env.loc.name(slot);
+      values[slot] = env.get(slot);
+    }
+    try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      for (int t = 0; t < threads; ++t) {
+        executor.execute(() -> {
+          Service.Session session = new Service.Session(service);
+          Metrics.Eval event = new Metrics.Eval("service");
+          for (int i = 0; i < length / threads; ++i) {
+            session.eval("example", names, values, names.length);
+          }
+          event.done(length / threads);
+        });
+      }
+    }
+    try (ServerSocket server = service.serve(0);
+         Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+         BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+         PrintWriter out = new PrintWriter(socket.getOutputStream(), true, StandardCharsets.UTF_8)) {
+      StringBuilder json = new StringBuilder();
+      toJSON(getExample(2), json);
+      out.println("REGISTER small " + json);
+      System.out.printf("Service REGISTER: %s%n", in.readLine());
+      out.println("EVAL small a_0_0=1 a_0_1=2 a_1_0=3 a_1_1=4 b_0_0=5 b_0_1=6 b_1_0=7 b_1_1=8");
+      System.out.printf("Service EVAL: %s%n", in.readLine());
+      Expr chain = mkVar("x");
+      for (int i = 0; i < deep; ++i) {
+        chain = mkPlus(chain, mkLit(1));
+      }
+      json.setLength(0);
+      toJSON(chain, json);
+      out.println("REGISTER deep " + json);
+      String registered = in.readLine();
+      out.println("EVAL deep x=1");
+      String result = in.readLine();
+      if (!registered.equals("OK") || !result.equals(String.valueOf(deep + 1))) {
+        throw new RuntimeException("Unexpected value: " + registered + " " + result);
+      }
+      System.out.printf("Service deep EVAL: %s%n", result);
+    } finally {
+      service.shutdown();
+    }
+  }
+
+  // The second DiskCache stands in for a restarted JVM: it finds the entry the first one stored.
+  public static void profileDiskCache(int n) throws Throwable {
+    Path root = Files.createTempDirectory("diskcache");
+    try {
+      String source = Split.source(locate(getExample(n), new Loc()));
+      long time0 = System.nanoTime();
+      new DiskCache(root).<ToIntFunction<int[]>>load(source);
+      long time1 = System.nanoTime();
+      DiskCache restarted = new DiskCache(root);
+      restarted.<ToIntFunction<int[]>>load(source);
+      long time2 = System.nanoTime();
+      System.out.printf("DiskCache miss took %sus, hit took %sus, %s%n",
+        (time1 - time0) / 1000, (time2 - time1) / 1000, restarted);
+    } finally {
+      DiskCache.delete(root);
+    }
+  }
+
+  public static void profileEngine(Engine engine, int n, int length) throws Throwable {
+    Loc loc = new Loc();
+    LExpr located = locate(getExample(n), loc);
+    ToIntFunction<int[]> prepared = engine.prepare(located);
+    int[] locEnv = envToLocEnv(getExampleEnv(n), loc);
+    Metrics.Eval event = new Metrics.Eval(engine.name().toLowerCase());
+    for (int i = 0; i < length; ++i) {
+      prepared.applyAsInt(locEnv);
+    }
+    event.done(length);
+  }
+
+  // Compiles formulas distinct formulas and keeps every handle, as a long-running node would.
+  // Only maxLive of them keep their generated class, so Metaspace stays flat once the GC unloads the rest.
+  public static void profileChurn(Engine engine, int formulas, int maxLive) throws Throwable {
+    CodeSpace space = new CodeSpace(engine, maxLive);
+    ArrayList<CodeSpace.Handle> handles = new ArrayList<>();
+    Loc loc = new Loc();
+    LExpr example = locate(getExample(2), loc);
+    int[] locEnv = envToLocEnv(getExampleEnv(2), loc);
+    for (int i = 0; i < formulas; ++i) {
+      CodeSpace.Handle handle = space.compile(new LPlus(example, new LLit(i)));
+      handle.applyAsInt(locEnv);
+      handles.add(handle);
+    }
+    System.gc();
+    long metaspace = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getName().equals("Metaspace")) {
+        metaspace = pool.getUsage().getUsed();
+      }
+    }
+    System.out.printf("Churn: %s handles, %s, %s classes unloaded, Metaspace %sKB%n", handles.size(), space,
+      ManagementFactory.getClassLoadingMXBean().getUnloadedClassCount(), metaspace / 1024);
+  }
+
+  static int[][] envToLocColumns(Env env, Loc loc, int rows) {return env.columns(loc, rows);}
+
+  public static void profileLocatedBatch(int n, int length) {
+    Expr example = getExample(n);
+    Env env = getExampleEnv(n);
+    Loc loc = new Loc();
+    LExpr located = locate(example, loc);
+    int rows = 1024 * 64;
+    int[][] columns = envToLocColumns(env, loc, rows);
+    int[] out = new int[rows];
+    Metrics.Eval event = new Metrics.Eval("batch");
+    for (int i = 0; i < length; i += rows) {
+      Batch.eval(located, columns, out);
+    }
+    event.done((length + rows - 1) / rows * rows);
+  }
+
+  public static void profileCachedCompile(CompileCache cache, int n, int length) throws Throwable {
+    Expr example = getExample(n);
+    Env env = getExampleEnv(n);
+    Loc loc = new Loc();
+    LExpr located = locate(example, loc);
+    try (CodeSpace.Handle compiled = cache.compile(located)) {
+      int[] locEnv = envToLocEnv(env, loc);
+      Metrics.Eval event = new Metrics.Eval("cached");
+      for (int i = 0; i < length; ++i) {
+        compiled.applyAsInt(locEnv);
+      }
+      event.done(length);
+    }
+  }
+
+  public static void profileLocatedAssemble(int n, int length) throws Throwable {
+    Expr example = getExample(n);
+    Env env = getExampleEnv(n);
+    Loc loc = new Loc();
+    LExpr located = locate(example, loc);
+    ToIntFunction<int[]> assembled = asm(located);
     int[] locEnv = envToLocEnv(env, loc);
+    Metrics.Eval event = new Metrics.Eval("asm");
     for (int i = 0; i < length; ++i) {
-      compiled.apply(locEnv);
+      assembled.applyAsInt(locEnv);
     }
+    event.done(length);
+  }
+
+  static ToIntFunction<int[]> asm(LExpr expr) throws Throwable {
+    Metrics.Compile event = new Metrics.Compile("asm");
+    byte[] bytes = new Assembler().assemble(expr);
+    ToIntFunction<int[]> assembled = Assembler.load(bytes);
+    event.done(bytes.length);
+    return assembled;
+  }
+
+  static ToIntFunction<int[]> handles(LExpr expr) throws Throwable {
+    Metrics.Compile event = new Metrics.Compile("handles");
+    ToIntFunction<int[]> compiled = Handles.compile(expr);
+    event.done(expr.size);
+    return compiled;
+  }
+
+  // Always through Split, so no expression can produce a method over the 64 KB limit.
+  static ToIntFunction<int[]> javac(LExpr expr) throws Throwable {return javacSource(Split.source(expr));}
+
+  // Every repeated subtree of expr is computed once, into a local.
+  static ToIntFunction<int[]> compileCSE(LExpr expr) throws Throwable {return javacSource(Multi.source(expr));}
+
+  // All exprs must be located with the same loc. The result writes exprs.get(i) into out[i].
+  static BiConsumer<int[], int[]> compileMulti(List<LExpr> exprs) throws Throwable {
+    return javacSource(Multi.source(exprs));
   }
 
-  static Function<int[], Integer> javac(String code) throws Throwable {
-    String source =
-      "package generated;\n" +
-      "import java.util.function.Function;\n" +
-      "public class Generated implements Function<int[], Integer> {\n" +
-      "  public Integer apply(int[] env) {\n" +
-      "    return " + code + ";\n" +
-      "  }\n" +
-      "}\n";
+  // Loads generated.Generated from source, as whichever interface the source declares.
+  static <T> T javacSource(String source) throws Throwable {
+    if (DiskCache.DEFAULT != null) {
+      return DiskCache.DEFAULT.load(source);
+    }
+    Metrics.Compile event = new Metrics.Compile("javac");
+    Path root = Files.createTempDirectory("compile");
+    try {
+      javacInto(root.toFile(), source);
+      T instance = loadGenerated(root.toFile());
+      event.done(source.length());
+      return instance;
+    } finally {
+      DiskCache.delete(root);
+    }
+  }
 
-    File root = Files.createTempDirectory("compile").toFile();
+  // Leaves generated/Generated.java and its class files under root.
+  static void javacInto(File root, String source) throws IOException {
     File sourceFile = new File(root, "generated/Generated.java");
     sourceFile.getParentFile().mkdirs();
     Files.writeString(sourceFile.toPath(), source);
 
     JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
-    compiler.run(null, null, null, sourceFile.getPath());
+    if (compiler.run(null, null, null, sourceFile.getPath()) != 0) {
+      throw new RuntimeException("javac failed on " + sourceFile);
+    }
+  }
 
-    URLClassLoader classLoader = URLClassLoader.newInstance(new URL[] { root.toURI().toURL() });
-    Class<?> cls = Class.forName("generated.Generated", true, classLoader);
-    Object instance = cls.getDeclaredConstructor().newInstance();
-    return (Function<int[], Integer>) instance;
+  // Each call gets a loader of its own, so the classes can be unloaded as soon as the returned instance
+  // is unreachable. Every class under root is loaded up front and the loader is closed, so nothing
+  // reads root afterwards and it may be deleted right away.
+  @SuppressWarnings("unchecked")
+  static <T> T loadGenerated(File root) throws Throwable {
+    try (URLClassLoader classLoader = URLClassLoader.newInstance(new URL[] { root.toURI().toURL() })) {
+      for (String name : new File(root, "generated").list()) {
+        if (name.endsWith(".class")) {
+          Class.forName("generated." + name.substring(0, name.length() - 6), false, classLoader);
+        }
+      }
+      Class<?> cls = Class.forName("generated.Generated", true, classLoader);
+      return (T) cls.getDeclaredConstructor().newInstance();
+    }
   }
 
   public static void main(String[] args) {
@@ -230,8 +1144,75 @@ public class Cal {
       long time1 = System.currentTimeMillis();
       profileLocatedCompile(n, length);
       long time2 = System.currentTimeMillis();
+      profileLocatedAssemble(n, length);
+      long time3 = System.currentTimeMillis();
+      CompileCache cache = new CompileCache(16);
+      profileCachedCompile(cache, n, length);
+      long time4 = System.currentTimeMillis();
+      profileCachedCompile(cache, n, length);
+      long time5 = System.currentTimeMillis();
+      profileLocatedBatch(n, length);
+      long time6 = System.currentTimeMillis();
+      profileReadLocated(n, 1024 * 16);
+      long time7 = System.currentTimeMillis();
+      profileDeep(64);
+      long time8 = System.currentTimeMillis();
+      profileBinary(n, 1024 * 16);
+      long time9 = System.currentTimeMillis();
+      profileInterp(n, length);
+      long time10 = System.currentTimeMillis();
+      profileTiered(n, length);
+      long time11 = System.currentTimeMillis();
+      profileParallel(64, 128);
+      long time12 = System.currentTimeMillis();
+      profileReassociated(n, length);
+      long time13 = System.currentTimeMillis();
+      profileIncremental(n, length);
+      long time14 = System.currentTimeMillis();
+      profileSpecialize(n, length);
+      long time15 = System.currentTimeMillis();
+      profileSplitCompile(64, 1024 * 8);
+      long time16 = System.currentTimeMillis();
+      profileMultiCompile(n, length / 16);
+      long time17 = System.currentTimeMillis();
+      profileService(n, length / 16, 64, 200000);
+      long time18 = System.currentTimeMillis();
+      profileDiskCache(n);
+      long time19 = System.currentTimeMillis();
+      profileEngine(Engine.HANDLES, n, length);
+      long time20 = System.currentTimeMillis();
+      profileChurn(Engine.ASM, 1024 * 16, 256);
+      long time21 = System.currentTimeMillis();
+      profileCSECompile(n, length);
+      long time22 = System.currentTimeMillis();
+      profileTieredCache(257);
+      long time23 = System.currentTimeMillis();
       System.out.printf("LocatedEval took %s%n", time1 - time0);
       System.out.printf("LocatedCompile took %s%n", time2 - time1);
+      System.out.printf("LocatedAssemble took %s%n", time3 - time2);
+      System.out.printf("CachedCompile (miss) took %s%n", time4 - time3);
+      System.out.printf("CachedCompile (hit) took %s%n", time5 - time4);
+      System.out.println(cache);
+      System.out.printf("LocatedBatch took %s%n", time6 - time5);
+      System.out.printf("ReadLocated took %s%n", time7 - time6);
+      System.out.printf("Deep took %s%n", time8 - time7);
+      System.out.printf("Binary took %s%n", time9 - time8);
+      System.out.printf("Interp took %s%n", time10 - time9);
+      System.out.printf("Tiered took %s%n", time11 - time10);
+      System.out.println(Tiered.metrics());
+      System.out.printf("Parallel took %s%n", time12 - time11);
+      System.out.printf("ReassociatedCompile took %s%n", time13 - time12);
+      System.out.printf("Incremental took %s%n", time14 - time13);
+      System.out.printf("Specialize took %s%n", time15 - time14);
+      System.out.printf("SplitCompile took %s%n", time16 - time15);
+      System.out.printf("MultiCompile took %s%n", time17 - time16);
+      System.out.printf("Service took %s%n", time18 - time17);
+      System.out.printf("DiskCache took %s%n", time19 - time18);
+      System.out.printf("Handles took %s%n", time20 - time19);
+      System.out.printf("Churn took %s%n", time21 - time20);
+      System.out.printf("CSECompile took %s%n", time22 - time21);
+      System.out.printf("TieredCache took %s%n", time23 - time22);
+      System.out.println(Metrics.report());
     } catch (Throwable t) {
       t.printStackTrace();
     }
@@ -0,0 +1,108 @@
+// Owning generated evaluators, so their classes can be unloaded on purpose and their number capped
+package DefCom.Cal4;
+
+import DefCom.Util.Metrics;
+
+import java.util.LinkedHashSet;
+import java.util.function.ToIntFunction;
+
+// Generated code lives only as long as something reaches it: javac output has a loader per compile
+// (Cal.loadGenerated), and asm and handles define hidden classes that are not tied to their loader.
+// A Handle is the one reference a CodeSpace hands out. Closing it by its last owner, or its eviction
+// when more than maxLive handles are open, switches it back to Cal.fallback and drops the generated
+// instance; the GC can then unload the class, its loader and its JIT-compiled code.
+// Evicted handles keep working at any depth, only slower, like a Tiered whose compile failed.
+// CompileCache keeps its compiled code here, so Service and Tiered release theirs through it.
+class CodeSpace {
+  final Engine engine;
+  final int maxLive;
+  final Metrics.Calls calls;
+  // Open handles, in the order they were compiled; the oldest is evicted first.
+  final LinkedHashSet<Handle> live = new LinkedHashSet<>();
+  long compiled = 0, released = 0, evicted = 0;
+
+  CodeSpace(Engine engine, int maxLive) {
+    if (maxLive <= 0) {
+      throw new RuntimeException("maxLive must be positive: " + maxLive);
+    }
+    this.engine = engine;
+    this.maxLive = maxLive;
+    this.calls = Metrics.calls(engine.name().toLowerCase());
+  }
+
+  class Handle implements ToIntFunction<int[]>, AutoCloseable {
+    final Cal.LExpr located;
+    volatile ToIntFunction<int[]> current;
+    // Owners that have not closed it yet, guarded by the CodeSpace. compile hands out the first one.
+    int refs = 1;
+
+    Handle(Cal.LExpr located, ToIntFunction<int[]> code) {
+      this.located = located;
+      this.current = code;
+    }
+
+    public int applyAsInt(int[] env) {
+      calls.tick();
+      return current.applyAsInt(env);
+    }
+
+    void demote() {current = Cal.fallback(located);}
+
+    // Adds an owner, who must close the handle in turn. False once the last owner has closed it.
+    boolean retain() {
+      synchronized (CodeSpace.this) {
+        if (refs == 0) {
+          return false;
+        }
+        ++refs;
+        return true;
+      }
+    }
+
+    // Whether this still runs its generated code.
+    boolean open() {
+      synchronized (CodeSpace.this) {
+        return live.contains(this);
+      }
+    }
+
+    public void close() {
+      synchronized (CodeSpace.this) {
+        if (refs == 0 || --refs > 0) {
+          return;
+        }
+        if (live.remove(this)) {
+          ++released;
+          Metrics.add("codespace.released", 1);
+        }
+      }
+      demote();
+    }
+  }
+
+  Handle compile(Cal.LExpr expr) throws Throwable {
+    Handle handle = new Handle(expr, engine.prepare(expr));
+    Handle victim = null;
+    synchronized (this) {
+      ++compiled;
+      live.add(handle);
+      if (live.size() > maxLive) {
+        victim = live.iterator().next();
+        live.remove(victim);
+        ++evicted;
+        Metrics.add("codespace.evicted", 1);
+      }
+    }
+    if (victim != null) {
+      victim.demote();
+    }
+    return handle;
+  }
+
+  synchronized int live() {return live.size();}
+
+  public synchronized String toString() {
+    return "CodeSpace(engine=%s, live=%s, maxLive=%s, compiled=%s, released=%s, evicted=%s)".formatted(
+      engine, live.size(), maxLive, compiled, released, evicted);
+  }
+}
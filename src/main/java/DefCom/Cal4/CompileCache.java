@@ -0,0 +1,81 @@
+// Reusing compiled code for located expressions that have been compiled before
+package DefCom.Cal4;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+// The lock only guards the table. A miss puts a future in the table and compiles outside the lock,
+// so hits on other keys never wait behind javac, and callers missing on the same key wait for
+// the one compile instead of starting their own. A failed compile is removed, so it can be retried.
+// Compiled code is a Handle in the cache's own CodeSpace, owned by the table and by every caller
+// that got it from compile. Dropping an entry only gives up the table's share, so code still in use
+// keeps running compiled; the class is unloaded once its last caller closes the Handle too.
+// So at most capacity classes are live beyond the ones somebody still holds.
+class CompileCache {
+  final int capacity;
+  // No cap of its own: the owners above decide when a class goes.
+  final CodeSpace space = new CodeSpace(Engine.JAVAC, Integer.MAX_VALUE);
+  long hits = 0;
+  long misses = 0;
+
+  // Keyed on the value-numbered DAG rather than the source: it is built without recursion,
+  // costs a fraction of the compile it stands for, and a repeated subtree counts once.
+  final LinkedHashMap<Multi.Shape, CompletableFuture<CodeSpace.Handle>> entries = new LinkedHashMap<>(16, 0.75f, true) {
+    protected boolean removeEldestEntry(Map.Entry<Multi.Shape, CompletableFuture<CodeSpace.Handle>> eldest) {
+      if (size() <= capacity) {
+        return false;
+      }
+      // A Handle still compiling is given up as soon as it is done.
+      eldest.getValue().thenAccept(CodeSpace.Handle::close);
+      return true;
+    }
+  };
+
+  CompileCache(int capacity) {this.capacity = capacity;}
+
+  // The caller becomes an owner of the returned Handle and closes it when done with it.
+  CodeSpace.Handle compile(Cal.LExpr expr) throws Throwable {
+    Multi.Shape shape = Multi.shape(expr);
+    while (true) {
+      CompletableFuture<CodeSpace.Handle> future, created = null;
+      synchronized (this) {
+        future = entries.get(shape);
+        if (future != null) {
+          ++hits;
+        } else {
+          ++misses;
+          future = created = new CompletableFuture<>();
+          entries.put(shape, future);
+        }
+      }
+      if (created != null) {
+        try {
+          created.complete(space.compile(expr));
+        } catch (Throwable t) {
+          synchronized (this) {
+            entries.remove(shape, created);
+          }
+          created.completeExceptionally(t);
+        }
+      }
+      CodeSpace.Handle handle;
+      try {
+        handle = future.get();
+      } catch (ExecutionException e) {
+        throw e.getCause();
+      }
+      if (handle.retain()) {
+        return handle;
+      }
+      // Evicted and closed since it was looked up, so the next lookup misses and compiles it again.
+    }
+  }
+
+  synchronized int size() {return entries.size();}
+
+  public synchronized String toString() {
+    return "CompileCache(size=%s, capacity=%s, hits=%s, misses=%s, %s)".formatted(entries.size(), capacity, hits, misses, space);
+  }
+}
@@ -0,0 +1,91 @@
+// Keeping generated classes on disk, so a restarted JVM loads them instead of running javac again
+package DefCom.Cal4;
+
+import DefCom.Util.Metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+// Content-addressed: an entry is a directory of class files named by the SHA-256 of the generator
+// version, the JDK version and the generated source. A different JDK or generator therefore never
+// sees an old entry, and simply compiles and stores its own next to it.
+// Entries are compiled in a scratch directory and renamed into place, so readers, including other
+// JVMs sharing the directory, only ever see complete entries.
+class DiskCache {
+  // Bump whenever the generated source or its calling convention changes.
+  static final int GENERATOR_VERSION = 1;
+  // Running with -Ddefcom.cache=<dir> sends every javacSource through a DiskCache in dir.
+  static final DiskCache DEFAULT = System.getProperty("defcom.cache") == null
+    ? null : new DiskCache(Path.of(System.getProperty("defcom.cache")));
+
+  final Path root;
+  final AtomicLong hits = new AtomicLong();
+  final AtomicLong misses = new AtomicLong();
+
+  DiskCache(Path root) {this.root = root;}
+
+  static String key(String source) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      digest.update(("DefCom generator " + GENERATOR_VERSION + "\n").getBytes(StandardCharsets.UTF_8));
+      digest.update(("JDK " + Runtime.version() + "\n").getBytes(StandardCharsets.UTF_8));
+      digest.update(source.getBytes(StandardCharsets.UTF_8));
+      return HexFormat.of().formatHex(digest.digest());
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  <T> T load(String source) throws Throwable {
+    Path entry = root.resolve(key(source));
+    if (Files.isDirectory(entry)) {
+      hits.incrementAndGet();
+      Metrics.Compile event = new Metrics.Compile("disk");
+      T instance = Cal.loadGenerated(entry.toFile());
+      event.done(source.length());
+      return instance;
+    }
+    misses.incrementAndGet();
+    Metrics.Compile event = new Metrics.Compile("javac");
+    Files.createDirectories(root);
+    Path scratch = Files.createTempDirectory(root, "compile");
+    try {
+      Cal.javacInto(scratch.toFile(), source);
+      Files.move(scratch, entry, StandardCopyOption.ATOMIC_MOVE);
+    } catch (FileAlreadyExistsException | DirectoryNotEmptyException e) {
+      // Another thread or JVM stored the same entry first; theirs is just as good.
+    } finally {
+      // Still there unless the move succeeded: after a lost race, or when javac failed.
+      if (Files.exists(scratch)) {
+        delete(scratch);
+      }
+    }
+    T instance = Cal.loadGenerated(entry.toFile());
+    event.done(source.length());
+    return instance;
+  }
+
+  static void delete(Path dir) throws IOException {
+    try (Stream<Path> paths = Files.walk(dir)) {
+      for (Path path : paths.sorted(Comparator.reverseOrder()).toArray(Path[]::new)) {
+        Files.delete(path);
+      }
+    }
+  }
+
+  public String toString() {
+    return "DiskCache(root=%s, hits=%s, misses=%s)".formatted(root, hits.get(), misses.get());
+  }
+}
@@ -0,0 +1,26 @@
+// Choosing how a located expression is prepared for evaluation, at run time
+package DefCom.Cal4;
+
+import java.util.function.ToIntFunction;
+
+// From cheapest to prepare to fastest to run, roughly.
+enum Engine {
+  CLOSURE {
+    ToIntFunction<int[]> prepare(Cal.LExpr expr) {return expr::eval;}
+  },
+  INTERP {
+    // Interp reuses one operand stack, so each callable gets its own and is not thread-safe.
+    ToIntFunction<int[]> prepare(Cal.LExpr expr) {return Interp.lower(expr)::eval;}
+  },
+  HANDLES {
+    ToIntFunction<int[]> prepare(Cal.LExpr expr) throws Throwable {return Cal.handles(expr);}
+  },
+  ASM {
+    ToIntFunction<int[]> prepare(Cal.LExpr expr) throws Throwable {return Cal.asm(expr);}
+  },
+  JAVAC {
+    ToIntFunction<int[]> prepare(Cal.LExpr expr) throws Throwable {return Cal.compileCSE(expr);}
+  };
+
+  abstract ToIntFunction<int[]> prepare(Cal.LExpr expr) throws Throwable;
+}
@@ -0,0 +1,54 @@
+// Named environments for binding located expressions, kept as primitive ints throughout
+package DefCom.Cal4;
+
+import java.util.Arrays;
+
+// Values live in the slot order of the Env's own Loc, so putting a name costs one probe.
+// Binding to an expression's Loc is one probe per slot there, straight into a fresh int[].
+class Env {
+  final Loc loc = new Loc();
+  int[] values = new int[8];
+
+  Env put(int symbol, int val) {
+    int slot = loc.add(symbol);
+    if (slot == values.length) {
+      values = Arrays.copyOf(values, slot * 2);
+    }
+    values[slot] = val;
+    return this;
+  }
+
+  Env put(String name, int val) {return put(Symbol.intern(name), val);}
+
+  // Returns the index of symbol in values, or -1 when it is unbound.
+  int indexOf(int symbol) {return loc.slot(symbol);}
+
+  int get(int slot) {return values[slot];}
+
+  int size() {return loc.size();}
+
+  int index(Loc target, int slot) {
+    int i = loc.slot(target.symbol(slot));
+    if (i < 0) {
+      throw new RuntimeException("Unbound variable: " + target.name(slot));
+    }
+    return i;
+  }
+
+  int[] bind(Loc target) {
+    int[] env = new int[target.size()];
+    for (int slot = 0; slot < env.length; ++slot) {
+      env[slot] = values[index(target, slot)];
+    }
+    return env;
+  }
+
+  // Every row gets the same values; one column per slot of target.
+  int[][] columns(Loc target, int rows) {
+    int[][] columns = new int[target.size()][rows];
+    for (int slot = 0; slot < columns.length; ++slot) {
+      Arrays.fill(columns[slot], values[index(target, slot)]);
+    }
+    return columns;
+  }
+}
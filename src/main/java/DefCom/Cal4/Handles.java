@@ -0,0 +1,66 @@
+// Staging a located expression as a tree of method handles, which HotSpot inlines without any compiler
+package DefCom.Cal4;
+
+import java.lang.invoke.ConstantCallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.function.ToIntFunction;
+
+// Every node becomes a handle of type (int[])int: a literal ignores env, a Var is an array element
+// getter with its slot bound, and Plus/Mult feed env to both children and add or multiply the results.
+// The root is bound into a ConstantCallSite and reached through a static final field of a tiny
+// hidden class, so the JIT sees one constant handle tree. Preparation is only handle combination:
+// no source, no javac, no class loader.
+// Like LExpr.eval, invoking the tree recurses once per level, so very deep trees should be
+// reassociated first.
+class Handles {
+  static final MethodType TYPE = MethodType.methodType(int.class, int[].class);
+  static final MethodHandle ADD, MUL, SLOT;
+
+  static {
+    try {
+      MethodHandles.Lookup lookup = MethodHandles.lookup();
+      MethodType binary = MethodType.methodType(int.class, int.class, int.class);
+      ADD = lookup.findStatic(Handles.class, "add", binary);
+      MUL = lookup.findStatic(Handles.class, "mul", binary);
+      SLOT = MethodHandles.arrayElementGetter(int[].class);
+    } catch (ReflectiveOperationException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  static int add(int left, int right) {return left + right;}
+
+  static int mul(int left, int right) {return left * right;}
+
+  static MethodHandle lit(int val) {return MethodHandles.dropArguments(MethodHandles.constant(int.class, val), 0, int[].class);}
+
+  static MethodHandle var(int idx) {return MethodHandles.insertArguments(SLOT, 1, idx);}
+
+  // op(left(env), right(env)): filtering gives (int[], int[])int, and permuting passes env to both.
+  static MethodHandle combine(MethodHandle op, MethodHandle left, MethodHandle right) {
+    return MethodHandles.permuteArguments(MethodHandles.filterArguments(op, 0, left, right), TYPE, 0, 0);
+  }
+
+  static MethodHandle tree(Cal.LExpr expr) {
+    ArrayList<MethodHandle> stack = new ArrayList<>();
+    new Cal.LExprWalk() {
+      public void leaf(Cal.LExpr expr) {
+        stack.add(expr instanceof Cal.LLit ? lit(((Cal.LLit) expr).val) : var(((Cal.LVar) expr).idx));
+      }
+
+      public void exit(Cal.LExpr expr) {
+        MethodHandle right = stack.remove(stack.size() - 1);
+        MethodHandle left = stack.remove(stack.size() - 1);
+        stack.add(combine(expr instanceof Cal.LPlus ? ADD : MUL, left, right));
+      }
+    }.walk(expr);
+    return stack.get(0);
+  }
+
+  static ToIntFunction<int[]> compile(Cal.LExpr expr) throws Throwable {
+    return Assembler.loadInvoker(new ConstantCallSite(tree(expr)).dynamicInvoker());
+  }
+}
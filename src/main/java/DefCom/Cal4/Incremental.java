@@ -0,0 +1,116 @@
+// Keeping the value of every subtree, so changing one slot only recomputes the nodes above it
+package DefCom.Cal4;
+
+import java.util.Arrays;
+
+// The tree is flattened in postorder, so every node comes after both of its children.
+class Incremental {
+  static final int LIT = 0, VAR = 1, ADD = 2, MUL = 3;
+
+  final int[] op, left, right, parent, value;
+  final int[][] slotLeaves;
+  final int[] env;
+  final boolean[] dirty;
+  int[] pending = new int[64];
+
+  Incremental(Cal.LExpr expr, int[] env) {
+    int size = expr.size;
+    op = new int[size];
+    left = new int[size];
+    right = new int[size];
+    parent = new int[size];
+    value = new int[size];
+    dirty = new boolean[size];
+    this.env = env.clone();
+    int[] uses = new int[env.length];
+    new Cal.LExprWalk() {
+      int next = 0;
+      int[] stack = new int[64];
+      int sp = 0;
+
+      void push(int id) {
+        if (sp == stack.length) {
+          stack = Arrays.copyOf(stack, sp * 2);
+        }
+        stack[sp++] = id;
+      }
+
+      public void leaf(Cal.LExpr expr) {
+        int id = next++;
+        if (expr instanceof Cal.LLit) {
+          op[id] = LIT;
+          value[id] = ((Cal.LLit) expr).val;
+        } else if (expr instanceof Cal.LVar) {
+          op[id] = VAR;
+          left[id] = ((Cal.LVar) expr).idx;
+          ++uses[left[id]];
+        } else {
+          throw new RuntimeException("Unexpected value: " + expr.getClass());
+        }
+        push(id);
+      }
+
+      public void exit(Cal.LExpr expr) {
+        int id = next++;
+        op[id] = expr instanceof Cal.LPlus ? ADD : MUL;
+        right[id] = stack[--sp];
+        left[id] = stack[--sp];
+        parent[left[id]] = id;
+        parent[right[id]] = id;
+        push(id);
+      }
+    }.walk(expr);
+    parent[size - 1] = -1;
+
+    slotLeaves = new int[env.length][];
+    for (int slot = 0; slot < env.length; ++slot) {
+      slotLeaves[slot] = new int[uses[slot]];
+      uses[slot] = 0;
+    }
+    for (int id = 0; id < size; ++id) {
+      if (op[id] == VAR) {
+        slotLeaves[left[id]][uses[left[id]]++] = id;
+      }
+      value[id] = compute(id);
+    }
+  }
+
+  int compute(int id) {
+    return switch (op[id]) {
+      case LIT -> value[id];
+      case VAR -> env[left[id]];
+      case ADD -> value[left[id]] + value[right[id]];
+      default -> value[left[id]] * value[right[id]];
+    };
+  }
+
+  int value() {return value[value.length - 1];}
+
+  // Marks every node above a use of slot, stopping at nodes already marked, then recomputes the
+  // marked nodes children-first. Each leaf's run of marked nodes is appended as it is found and
+  // pending is sorted once, since a parent's id is above its children's: the cost is
+  // O(marked * log(marked)), whatever the number of uses.
+  int update(int slot, int val) {
+    if (env[slot] == val) {
+      return value();
+    }
+    env[slot] = val;
+    int count = 0;
+    for (int leaf : slotLeaves[slot]) {
+      for (int id = leaf; id != -1 && !dirty[id]; id = parent[id]) {
+        if (count == pending.length) {
+          pending = Arrays.copyOf(pending, count * 2);
+        }
+        dirty[id] = true;
+        pending[count++] = id;
+      }
+    }
+    Arrays.sort(pending, 0, count);
+    for (int i = 0; i < count; ++i) {
+      int id = pending[i];
+      value[id] = compute(id);
+      dirty[id] = false;
+    }
+    return value();
+  }
+}
@@ -0,0 +1,159 @@
+// Lowering a located expression to a flat instruction array, run by a switch loop
+package DefCom.Cal4;
+
+import java.util.Arrays;
+
+// Not thread-safe: the operand stack is allocated once and reused by every eval.
+class Interp {
+  // Instructions are an opcode followed by zero, one or two operands.
+  static final int PUSH = 0, LOAD = 1, ADD = 2, MUL = 3;
+  // Superinstructions: an operation whose operands are slots or literals, saving the pushes.
+  static final int ADD_LOAD = 4, MUL_LOAD = 5, ADD_PUSH = 6, MUL_PUSH = 7, ADD_LOAD_LOAD = 8, MUL_LOAD_LOAD = 9;
+  // Multiply-accumulate, the shape of every term of a dot product.
+  static final int MAC_LOAD_LOAD = 10;
+
+  final int[] code;
+  final int[] stack;
+
+  Interp(int[] code, int maxStack) {
+    this.code = code;
+    this.stack = new int[maxStack];
+  }
+
+  static int width(int op) {
+    return switch (op) {
+      case ADD, MUL -> 1;
+      case ADD_LOAD_LOAD, MUL_LOAD_LOAD, MAC_LOAD_LOAD -> 3;
+      default -> 2;
+    };
+  }
+
+  static Interp lower(Cal.LExpr expr) {
+    return new Cal.LExprWalk() {
+      int[] code = new int[64];
+      int pc = 0, depth = 0, maxDepth = 0;
+
+      void emit(int op, int arg) {
+        if (pc + 2 > code.length) {
+          code = Arrays.copyOf(code, code.length * 2);
+        }
+        code[pc++] = op;
+        if (op == PUSH || op == LOAD) {
+          code[pc++] = arg;
+        }
+      }
+
+      public void leaf(Cal.LExpr expr) {
+        if (expr instanceof Cal.LLit) {
+          emit(PUSH, ((Cal.LLit) expr).val);
+        } else {
+          emit(LOAD, ((Cal.LVar) expr).idx);
+        }
+        maxDepth = Math.max(maxDepth, ++depth);
+      }
+
+      public void exit(Cal.LExpr expr) {
+        emit(expr instanceof Cal.LPlus ? ADD : MUL, 0);
+        --depth;
+      }
+
+      Interp run() {
+        walk(expr);
+        return new Interp(fuse(Arrays.copyOf(code, pc)), maxDepth);
+      }
+    }.run();
+  }
+
+  // Peephole pass over the postfix code. In order of preference:
+  // LOAD a; LOAD b; MUL; ADD => MAC_LOAD_LOAD a b, LOAD a; LOAD b; op => op_LOAD_LOAD a b,
+  // LOAD b; op => op_LOAD b and PUSH c; op => op_PUSH c.
+  static int[] fuse(int[] code) {
+    int[] out = new int[code.length];
+    int n = 0;
+    int pc = 0;
+    while (pc < code.length) {
+      int op = code[pc];
+      if (op == LOAD && pc + 5 < code.length && code[pc + 2] == LOAD && code[pc + 4] == MUL && code[pc + 5] == ADD) {
+        out[n++] = MAC_LOAD_LOAD;
+        out[n++] = code[pc + 1];
+        out[n++] = code[pc + 3];
+        pc += 6;
+      } else if (op == LOAD && pc + 4 < code.length && code[pc + 2] == LOAD && (code[pc + 4] == ADD || code[pc + 4] == MUL)) {
+        out[n++] = code[pc + 4] == ADD ? ADD_LOAD_LOAD : MUL_LOAD_LOAD;
+        out[n++] = code[pc + 1];
+        out[n++] = code[pc + 3];
+        pc += 5;
+      } else if ((op == LOAD || op == PUSH) && pc + 2 < code.length && (code[pc + 2] == ADD || code[pc + 2] == MUL)) {
+        boolean add = code[pc + 2] == ADD;
+        out[n++] = op == LOAD ? (add ? ADD_LOAD : MUL_LOAD) : (add ? ADD_PUSH : MUL_PUSH);
+        out[n++] = code[pc + 1];
+        pc += 3;
+      } else {
+        int width = width(op);
+        System.arraycopy(code, pc, out, n, width);
+        n += width;
+        pc += width;
+      }
+    }
+    return Arrays.copyOf(out, n);
+  }
+
+  int eval(int[] env) {
+    int[] code = this.code;
+    int[] stack = this.stack;
+    int sp = 0;
+    int pc = 0;
+    while (pc < code.length) {
+      switch (code[pc]) {
+        case PUSH -> {
+          stack[sp++] = code[pc + 1];
+          pc += 2;
+        }
+        case LOAD -> {
+          stack[sp++] = env[code[pc + 1]];
+          pc += 2;
+        }
+        case ADD -> {
+          --sp;
+          stack[sp - 1] += stack[sp];
+          pc += 1;
+        }
+        case MUL -> {
+          --sp;
+          stack[sp - 1] *= stack[sp];
+          pc += 1;
+        }
+        case ADD_LOAD -> {
+          stack[sp - 1] += env[code[pc + 1]];
+          pc += 2;
+        }
+        case MUL_LOAD -> {
+          stack[sp - 1] *= env[code[pc + 1]];
+          pc += 2;
+        }
+        case ADD_PUSH -> {
+          stack[sp - 1] += code[pc + 1];
+          pc += 2;
+        }
+        case MUL_PUSH -> {
+          stack[sp - 1] *= code[pc + 1];
+          pc += 2;
+        }
+        case ADD_LOAD_LOAD -> {
+          stack[sp++] = env[code[pc + 1]] + env[code[pc + 2]];
+          pc += 3;
+        }
+        case MUL_LOAD_LOAD -> {
+          stack[sp++] = env[code[pc + 1]] * env[code[pc + 2]];
+          pc += 3;
+        }
+        case MAC_LOAD_LOAD -> {
+          stack[sp - 1] += env[code[pc + 1]] * env[code[pc + 2]];
+          pc += 3;
+        }
+        default -> throw new RuntimeException("Unexpected opcode: " + code[pc]);
+      }
+    }
+    return stack[0];
+  }
+}
@@ -0,0 +1,250 @@
+// Reading the JSON form of our language in one streaming pass, without building a JSONObject tree
+package DefCom.Cal4;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayDeque;
+
+class JSONReader {
+  interface Builder<T> {
+    T lit(int val);
+
+    T plus(T left, T right);
+
+    T mult(T left, T right);
+
+    T var(String name);
+  }
+
+  static final Builder<Cal.Expr> EXPR = new Builder<>() {
+    public Cal.Expr lit(int val) {return Cal.mkLit(val);}
+
+    public Cal.Expr plus(Cal.Expr left, Cal.Expr right) {return Cal.mkPlus(left, right);}
+
+    public Cal.Expr mult(Cal.Expr left, Cal.Expr right) {return Cal.mkMult(left, right);}
+
+    public Cal.Expr var(String name) {return Cal.mkVar(name);}
+  };
+
+  // Assigns slots as the Vars are read. That is Expr.locate's order only when every left field
+  // comes before its right field, as toJSON writes them.
+  static Builder<Cal.LExpr> located(Loc loc) {
+    return new Builder<>() {
+      public Cal.LExpr lit(int val) {return new Cal.LLit(val);}
+
+      public Cal.LExpr plus(Cal.LExpr left, Cal.LExpr right) {return new Cal.LPlus(left, right);}
+
+      public Cal.LExpr mult(Cal.LExpr left, Cal.LExpr right) {return new Cal.LMult(left, right);}
+
+      public Cal.LExpr var(String name) {return new Cal.LVar(loc.add(Symbol.intern(name)));}
+    };
+  }
+
+  // One JSON object whose closing brace has not been read yet. Fields can come in any order.
+  static class Frame<T> {
+    String type, name, key;
+    int val;
+    boolean hasVal;
+    T left, right;
+
+    void set(T child) {
+      if (key.equals("left")) {
+        left = child;
+      } else {
+        right = child;
+      }
+    }
+
+    T build(Builder<T> builder) {
+      if (type == null) {
+        throw new RuntimeException("Missing type");
+      }
+      return switch (type) {
+        case "Literal" -> builder.lit(require(hasVal, "value"));
+        case "Plus" -> builder.plus(require(left, "left"), require(right, "right"));
+        case "Multiply" -> builder.mult(require(left, "left"), require(right, "right"));
+        case "Variable" -> builder.var(require(name, "name"));
+        default -> throw new RuntimeException("Unexpected value: " + type);
+      };
+    }
+
+    <F> F require(F field, String key) {
+      if (field == null) {
+        throw new RuntimeException("Missing " + key + " in " + type);
+      }
+      return field;
+    }
+
+    int require(boolean present, String key) {
+      if (!present) {
+        throw new RuntimeException("Missing " + key + " in " + type);
+      }
+      return val;
+    }
+  }
+
+  final Reader in;
+  final char[] buf = new char[8192];
+  int pos = 0, end = 0;
+
+  JSONReader(Reader in) {this.in = in;}
+
+  int peek() throws IOException {
+    if (pos == end) {
+      end = in.read(buf, 0, buf.length);
+      pos = 0;
+      if (end <= 0) {
+        end = 0;
+        return -1;
+      }
+    }
+    return buf[pos];
+  }
+
+  int next() throws IOException {
+    int c = peek();
+    if (c == -1) {
+      throw new RuntimeException("Unexpected end of input");
+    }
+    ++pos;
+    return c;
+  }
+
+  int skipWhitespace() throws IOException {
+    int c = peek();
+    while (c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+      ++pos;
+      c = peek();
+    }
+    return c;
+  }
+
+  void expect(char expected) throws IOException {
+    skipWhitespace();
+    int c = next();
+    if (c != expected) {
+      throw new RuntimeException("Expected '" + expected + "' but got '" + (char) c + "'");
+    }
+  }
+
+  // Accepts the same lenient strings as org.json: double-quoted, single-quoted, or bare words.
+  String readString() throws IOException {
+    int c = skipWhitespace();
+    StringBuilder sb = new StringBuilder();
+    if (c == '"' || c == '\'') {
+      int quote = next();
+      for (c = next(); c != quote; c = next()) {
+        if (c == '\\') {
+          c = next();
+          switch (c) {
+            case 'n' -> sb.append('\n');
+            case 't' -> sb.append('\t');
+            case 'r' -> sb.append('\r');
+            case 'b' -> sb.append('\b');
+            case 'f' -> sb.append('\f');
+            case 'u' -> {
+              char[] hex = {(char) next(), (char) next(), (char) next(), (char) next()};
+              sb.append((char) Integer.parseInt(new String(hex), 16));
+            }
+            default -> sb.append((char) c);
+          }
+        } else {
+          sb.append((char) c);
+        }
+      }
+    } else {
+      while (c != -1 && c != ',' && c != ':' && c != '}' && c != ']' && !Character.isWhitespace(c)) {
+        sb.append((char) next());
+        c = peek();
+      }
+    }
+    return sb.toString();
+  }
+
+  int readInt() throws IOException {
+    int c = skipWhitespace();
+    boolean negative = c == '-';
+    if (negative) {
+      next();
+      c = peek();
+    }
+    if (c < '0' || c > '9') {
+      throw new RuntimeException("Expected a number but got '" + (char) c + "'");
+    }
+    // Accumulated in a long, so anything outside int is caught before it can wrap.
+    long val = 0;
+    while (c >= '0' && c <= '9') {
+      val = val * 10 + (next() - '0');
+      if (val > (negative ? -(long) Integer.MIN_VALUE : Integer.MAX_VALUE)) {
+        throw new RuntimeException("Number out of range");
+      }
+      c = peek();
+    }
+    return (int) (negative ? -val : val);
+  }
+
+  // Skips the value of a field we do not use, including nested objects and arrays.
+  void skipValue() throws IOException {
+    int c = skipWhitespace();
+    if (c != '{' && c != '[') {
+      readString();
+      return;
+    }
+    int depth = 0;
+    do {
+      c = skipWhitespace();
+      if (c == '"' || c == '\'') {
+        readString();
+      } else {
+        next();
+        if (c == '{' || c == '[') {
+          ++depth;
+        } else if (c == '}' || c == ']') {
+          --depth;
+        }
+      }
+    } while (depth > 0);
+  }
+
+  // Uses an explicit stack of open objects, so the depth of the input is not limited by the Java stack.
+  <T> T read(Builder<T> builder) throws IOException {
+    ArrayDeque<Frame<T>> stack = new ArrayDeque<>();
+    expect('{');
+    stack.push(new Frame<>());
+    while (true) {
+      Frame<T> frame = stack.peek();
+      int c = skipWhitespace();
+      if (c == ',') {
+        next();
+      } else if (c == '}') {
+        next();
+        T node = frame.build(builder);
+        stack.pop();
+        if (stack.isEmpty()) {
+          if (skipWhitespace() != -1) {
+            throw new RuntimeException("Trailing input after the expression");
+          }
+          return node;
+        }
+        stack.peek().set(node);
+      } else {
+        String key = readString();
+        expect(':');
+        switch (key) {
+          case "left", "right" -> {
+            expect('{');
+            frame.key = key;
+            stack.push(new Frame<>());
+          }
+          case "type" -> frame.type = readString();
+          case "value" -> {
+            frame.val = readInt();
+            frame.hasVal = true;
+          }
+          case "name" -> frame.name = readString();
+          default -> skipValue();
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,73 @@
+// The slot assignment built by locate: an open-addressed table from symbol to slot
+package DefCom.Cal4;
+
+import java.util.Arrays;
+
+// Slots are dense and given in order of first add, exactly like the HashMap it replaces, but a
+// lookup is a multiply and a few int compares: no String hashing, no boxing, no entry objects.
+// keys holds symbol + 1 so that 0 marks an empty bucket; linear probing, at most half full.
+class Loc {
+  int[] keys = new int[16];
+  int[] values = new int[16];
+  int[] symbols = new int[8];
+  int size = 0;
+  // keys.length == 1 << (32 - shift); the bucket comes from the high bits of a Fibonacci hash.
+  int shift = 28;
+
+  int bucket(int symbol) {return symbol * 0x9E3779B9 >>> shift;}
+
+  // Returns -1 when symbol has no slot.
+  int slot(int symbol) {
+    for (int i = bucket(symbol); keys[i] != 0; i = i + 1 & keys.length - 1) {
+      if (keys[i] == symbol + 1) {
+        return values[i];
+      }
+    }
+    return -1;
+  }
+
+  int slot(String name) {return slot(Symbol.intern(name));}
+
+  // Returns the slot of symbol, giving it the next one if it has none yet.
+  int add(int symbol) {
+    int i = bucket(symbol);
+    for (; keys[i] != 0; i = i + 1 & keys.length - 1) {
+      if (keys[i] == symbol + 1) {
+        return values[i];
+      }
+    }
+    if (size == symbols.length) {
+      symbols = Arrays.copyOf(symbols, size * 2);
+    }
+    symbols[size] = symbol;
+    keys[i] = symbol + 1;
+    values[i] = size;
+    if (++size * 2 > keys.length) {
+      rehash();
+    }
+    return size - 1;
+  }
+
+  void rehash() {
+    int[] oldKeys = keys, oldValues = values;
+    keys = new int[oldKeys.length * 2];
+    values = new int[oldKeys.length * 2];
+    --shift;
+    for (int j = 0; j < oldKeys.length; ++j) {
+      if (oldKeys[j] != 0) {
+        int i = bucket(oldKeys[j] - 1);
+        while (keys[i] != 0) {
+          i = i + 1 & keys.length - 1;
+        }
+        keys[i] = oldKeys[j];
+        values[i] = oldValues[j];
+      }
+    }
+  }
+
+  int size() {return size;}
+
+  int symbol(int slot) {return symbols[slot];}
+
+  String name(int slot) {return Symbol.name(symbols[slot]);}
+}
@@ -0,0 +1,331 @@
+// Common-subexpression elimination for generated code, over one expression or many sharing a slot layout
+package DefCom.Cal4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// The expressions are value-numbered into one DAG: structurally equal subtrees, anywhere in any output,
+// get the same number. Plus and Mult commute exactly on ints, so operands are numbered in sorted order
+// and a*b and b*a are shared too. A node used more than once is computed once, into a temporary.
+// Temporaries are locals when everything fits in one method; otherwise statements are spread over
+// methods of about Split.METHOD_NODES nodes, as Split does, and temporaries live in an array t.
+// Each thread allocates its own t on its first call and reuses it after that, so calls on long-lived
+// platform threads allocate nothing. A thread per task does not get that: the endpoint's virtual thread
+// per connection allocates one t per connection, like its Session's buffers, though still none per call.
+class Multi {
+  static final int LIT = 0, VAR = 1, PLUS = 2, MULT = 3;
+  // A node whose inline form gets this large is also made a temporary, so no statement nests deeply.
+  static final int INLINE_NODES = 64;
+
+  // Indexed by node number, and children are always numbered before their parents.
+  // For LIT left is the value, for VAR it is the slot.
+  int[] op = new int[64], left = new int[64], right = new int[64];
+  // Number of distinct parents plus outputs using each node.
+  int[] uses = new int[64];
+  int count = 0;
+  final ArrayList<Integer> outputs = new ArrayList<>();
+  // Open addressing over node numbers plus one, so a lookup compares the arrays above and boxes nothing.
+  // table.length == 1 << (32 - shift) and is kept at least twice count, like Loc.
+  int[] table = new int[128];
+  int shift = 25;
+
+  int bucket(int op, int left, int right) {return ((op * 31 + left) * 0x9E3779B9 + right) * 0x9E3779B9 >>> shift;}
+
+  void grow() {
+    table = new int[table.length * 2];
+    --shift;
+    for (int id = 0; id < count; ++id) {
+      int i = bucket(op[id], left[id], right[id]);
+      while (table[i] != 0) {
+        i = i + 1 & table.length - 1;
+      }
+      table[i] = id + 1;
+    }
+  }
+
+  int number(int op, int left, int right) {
+    if (op >= PLUS && left > right) {
+      int t = left;
+      left = right;
+      right = t;
+    }
+    int i = bucket(op, left, right);
+    for (; table[i] != 0; i = i + 1 & table.length - 1) {
+      int id = table[i] - 1;
+      if (this.op[id] == op && this.left[id] == left && this.right[id] == right) {
+        return id;
+      }
+    }
+    int id = count++;
+    if (id == this.op.length) {
+      this.op = Arrays.copyOf(this.op, id * 2);
+      this.left = Arrays.copyOf(this.left, id * 2);
+      this.right = Arrays.copyOf(this.right, id * 2);
+      uses = Arrays.copyOf(uses, id * 2);
+    }
+    this.op[id] = op;
+    this.left[id] = left;
+    this.right[id] = right;
+    if (op >= PLUS) {
+      ++uses[left];
+      ++uses[right];
+    }
+    table[i] = id + 1;
+    if (count * 2 > table.length) {
+      grow();
+    }
+    return id;
+  }
+
+  void add(Cal.LExpr expr) {
+    int root = new Cal.LExprWalk() {
+      int[] ids = new int[64];
+      int sp = 0;
+
+      void push(int id) {
+        if (sp == ids.length) {
+          ids = Arrays.copyOf(ids, sp * 2);
+        }
+        ids[sp++] = id;
+      }
+
+      public void leaf(Cal.LExpr expr) {
+        if (expr instanceof Cal.LLit) {
+          push(number(LIT, ((Cal.LLit) expr).val, 0));
+        } else {
+          push(number(VAR, ((Cal.LVar) expr).idx, 0));
+        }
+      }
+
+      public void exit(Cal.LExpr expr) {
+        int r = ids[--sp];
+        int l = ids[--sp];
+        push(number(expr instanceof Cal.LPlus ? PLUS : MULT, l, r));
+      }
+
+      int run() {
+        walk(expr);
+        return ids[0];
+      }
+    }.run();
+    ++uses[root];
+    outputs.add(root);
+  }
+
+  // The numbered DAG of one expression: equal Shapes compute the same function, with the same slots.
+  // Built iteratively and holding each distinct node once, so it is cheap at any depth and size.
+  static final class Shape {
+    final int[] nodes;
+    final int hash;
+
+    Shape(int[] nodes) {
+      this.nodes = nodes;
+      this.hash = Arrays.hashCode(nodes);
+    }
+
+    public int hashCode() {return hash;}
+
+    public boolean equals(Object o) {return o instanceof Shape && Arrays.equals(nodes, ((Shape) o).nodes);}
+  }
+
+  static Shape shape(Cal.LExpr expr) {
+    Multi multi = new Multi();
+    multi.add(expr);
+    int[] nodes = new int[multi.count * 3 + 1];
+    for (int id = 0; id < multi.count; ++id) {
+      nodes[id * 3] = multi.op[id];
+      nodes[id * 3 + 1] = multi.left[id];
+      nodes[id * 3 + 2] = multi.right[id];
+    }
+    nodes[multi.count * 3] = multi.outputs.get(0);
+    return new Shape(nodes);
+  }
+
+  // Node number -> temporary, or -1 when the node is written inline where it is used.
+  int[] temp;
+  int temps = 0;
+  // Nodes in the inline form of each node, counting a temporary or leaf as one.
+  int[] inline;
+
+  void assignTemps() {
+    temp = new int[count];
+    inline = new int[count];
+    for (int id = 0; id < count; ++id) {
+      temp[id] = -1;
+      inline[id] = 1;
+      if (op[id] >= PLUS) {
+        inline[id] = 1 + cost(left[id]) + cost(right[id]);
+        if (uses[id] > 1 || inline[id] >= INLINE_NODES) {
+          temp[id] = temps++;
+        }
+      }
+    }
+  }
+
+  int cost(int id) {return temp[id] >= 0 ? 1 : inline[id];}
+
+  // Temporaries as locals t0, t1, ... or as elements of t.
+  boolean locals;
+
+  void expr(StringBuilder sb, int id, boolean top) {
+    if (!top && temp[id] >= 0) {
+      sb.append(locals ? "t" + temp[id] : "t[" + temp[id] + "]");
+    } else if (op[id] == LIT) {
+      sb.append("(").append(left[id]).append(")");
+    } else if (op[id] == VAR) {
+      sb.append("env[").append(left[id]).append("]");
+    } else {
+      sb.append("(");
+      expr(sb, left[id], false);
+      sb.append(op[id] == PLUS ? "+" : "*");
+      expr(sb, right[id], false);
+      sb.append(")");
+    }
+  }
+
+  final ArrayList<String> statements = new ArrayList<>();
+  final ArrayList<Integer> costs = new ArrayList<>();
+
+  void statement(String statement, int cost) {
+    statements.add(statement);
+    costs.add(cost);
+  }
+
+  // In number order, so each temporary is computed before its first use.
+  void temporaries() {
+    for (int id = 0; id < count; ++id) {
+      if (temp[id] >= 0) {
+        StringBuilder sb = new StringBuilder(locals ? "int t" + temp[id] : "t[" + temp[id] + "]").append(" = ");
+        expr(sb, id, true);
+        statement(sb.append(";").toString(), inline[id]);
+      }
+    }
+  }
+
+  int totalCost() {
+    int total = 0;
+    for (int id = 0; id < count; ++id) {
+      if (temp[id] >= 0) {
+        total += inline[id];
+      }
+    }
+    for (int root : outputs) {
+      total += cost(root);
+    }
+    return total;
+  }
+
+  String ref(int id) {
+    StringBuilder sb = new StringBuilder();
+    expr(sb, id, false);
+    return sb.toString();
+  }
+
+  // Methods of about Split.METHOD_NODES nodes each, in classes of Split.CLASS_METHODS methods.
+  ArrayList<StringBuilder> pack() {
+    ArrayList<StringBuilder> methods = new ArrayList<>();
+    int nodes = Split.METHOD_NODES;
+    for (int i = 0; i < statements.size(); ++i) {
+      if (nodes + costs.get(i) > Split.METHOD_NODES) {
+        methods.add(new StringBuilder());
+        nodes = 0;
+      }
+      methods.get(methods.size() - 1).append("      ").append(statements.get(i)).append("\n");
+      nodes += costs.get(i);
+    }
+    return methods;
+  }
+
+  // Every Part class also gets a run method calling its methods in order, so the generated method
+  // only calls the runs: it stays small however many methods there are, and no call nests deeper.
+  static void parts(StringBuilder sb, List<StringBuilder> methods, String params, String args) {
+    for (int part = 0; part * Split.CLASS_METHODS < methods.size(); ++part) {
+      int from = part * Split.CLASS_METHODS, to = Math.min(from + Split.CLASS_METHODS, methods.size());
+      sb.append("  static final class Part").append(part).append(" {\n");
+      sb.append("    static void run(").append(params).append(") {\n");
+      for (int m = from; m < to; ++m) {
+        sb.append("      m").append(m).append("(").append(args).append(");\n");
+      }
+      sb.append("    }\n");
+      for (int m = from; m < to; ++m) {
+        sb.append("    static void m").append(m).append("(").append(params).append(") {\n");
+        sb.append(methods.get(m));
+        sb.append("    }\n");
+      }
+      sb.append("  }\n");
+    }
+  }
+
+  static void runs(StringBuilder sb, int methods, String args) {
+    for (int part = 0; part * Split.CLASS_METHODS < methods; ++part) {
+      sb.append("    Part").append(part).append(".run(").append(args).append(");\n");
+    }
+  }
+
+  // The per-thread t of length temps, declared in members and fetched into the generated method.
+  // Split's generated source uses it too, with the same cost per thread.
+  static void temps(StringBuilder sb, StringBuilder members, int temps) {
+    sb.append("    int[] t = T.get();\n");
+    members.append("  static final ThreadLocal<int[]> T = ThreadLocal.withInitial(() -> new int[").append(temps).append("]);\n");
+  }
+
+  // Writes the statements into the generated method, or calls to the Part methods holding them.
+  // Anything the method needs besides itself, the Parts and the per-thread t, goes into members.
+  void body(StringBuilder sb, StringBuilder members, String params, String args) {
+    if (locals) {
+      for (String statement : statements) {
+        sb.append("    ").append(statement).append("\n");
+      }
+      return;
+    }
+    ArrayList<StringBuilder> methods = pack();
+    temps(sb, members, temps);
+    runs(sb, methods.size(), args);
+    parts(members, methods, params, args);
+  }
+
+  // One expression, returned from applyAsInt.
+  static String source(Cal.LExpr expr) {
+    Multi multi = new Multi();
+    multi.add(expr);
+    multi.assignTemps();
+    multi.locals = multi.totalCost() <= Split.METHOD_NODES;
+    multi.temporaries();
+    StringBuilder sb = new StringBuilder(), members = new StringBuilder();
+    sb.append("package generated;\n");
+    sb.append("import java.util.function.ToIntFunction;\n");
+    sb.append("public class Generated implements ToIntFunction<int[]> {\n");
+    sb.append("  public int applyAsInt(int[] env) {\n");
+    multi.body(sb, members, "int[] env, int[] t", "env, t");
+    sb.append("    return ").append(multi.ref(multi.outputs.get(0))).append(";\n");
+    sb.append("  }\n");
+    sb.append(members);
+    sb.append("}\n");
+    return sb.toString();
+  }
+
+  // Every expression, written to out in order by one call.
+  static String source(List<Cal.LExpr> exprs) {
+    Multi multi = new Multi();
+    for (Cal.LExpr expr : exprs) {
+      multi.add(expr);
+    }
+    multi.assignTemps();
+    multi.locals = multi.totalCost() <= Split.METHOD_NODES;
+    multi.temporaries();
+    for (int i = 0; i < multi.outputs.size(); ++i) {
+      multi.statement("out[" + i + "] = " + multi.ref(multi.outputs.get(i)) + ";", multi.cost(multi.outputs.get(i)));
+    }
+    StringBuilder sb = new StringBuilder(), members = new StringBuilder();
+    sb.append("package generated;\n");
+    sb.append("import java.util.function.BiConsumer;\n");
+    sb.append("public class Generated implements BiConsumer<int[], int[]> {\n");
+    sb.append("  public void accept(int[] env, int[] out) {\n");
+    multi.body(sb, members, "int[] env, int[] out, int[] t", "env, out, t");
+    sb.append("  }\n");
+    sb.append(members);
+    sb.append("}\n");
+    return sb.toString();
+  }
+}
@@ -0,0 +1,141 @@
+// Evaluating one very large located expression on every core with fork/join
+package DefCom.Cal4;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+// Everything about the shape of the tree is worked out once, when the Parallel is built:
+// each eval only walks the prebuilt chains and segments, forking at every split.
+class Parallel {
+  // Subtrees smaller than this are evaluated sequentially; forking them costs more than it saves.
+  static final int CUTOFF = 1 << 14;
+  // Subtrees this small are at most this deep, so the recursive eval is safe and avoids evalIter's setup.
+  static final int SHALLOW = 1 << 10;
+
+  final Cal.LExpr expr;
+  // Null when expr is small enough to evaluate sequentially.
+  final Chain chain;
+
+  Parallel(Cal.LExpr expr) {
+    this.expr = expr;
+    if (expr.size <= CUTOFF) {
+      chain = null;
+      return;
+    }
+    chain = new Chain(expr);
+    ArrayDeque<Chain> pending = new ArrayDeque<>();
+    pending.push(chain);
+    while (!pending.isEmpty()) {
+      Chain c = pending.pop();
+      for (int i = 0; i < c.operands.length; ++i) {
+        if (c.operands[i].size > CUTOFF) {
+          c.nested[i] = new Chain(c.operands[i]);
+          pending.push(c.nested[i]);
+        }
+      }
+    }
+  }
+
+  int eval(int[] env) {return eval(env, ForkJoinPool.commonPool());}
+
+  int eval(int[] env, ForkJoinPool pool) {
+    return chain == null ? evalSequential(expr, env) : pool.invoke(new Task(chain, chain.root, env));
+  }
+
+  static int evalSequential(Cal.LExpr expr, int[] env) {
+    return expr.size <= SHALLOW ? expr.eval(env) : Cal.evalIter(expr, env);
+  }
+
+  // getExample builds long left-leaning chains, where splitting at each node finds no parallelism.
+  // Instead a large node is flattened into the operands of its whole chain of the same operator,
+  // which are then split by size. Int addition and multiplication wrap, so regrouping them is exact.
+  static class Chain {
+    final boolean plus;
+    final Cal.LExpr[] operands;
+    // nested[i] is the Chain of operands[i] when that is larger than CUTOFF, and null otherwise.
+    // Such an operand is always of the other operator, so it starts a chain of its own.
+    final Chain[] nested;
+    final Segment root;
+
+    Chain(Cal.LExpr expr) {
+      plus = expr instanceof Cal.LPlus;
+      ArrayList<Cal.LExpr> list = new ArrayList<>();
+      ArrayDeque<Cal.LExpr> stack = new ArrayDeque<>();
+      stack.push(expr);
+      while (!stack.isEmpty()) {
+        Cal.LExpr node = stack.pop();
+        if (node.size > CUTOFF && (plus ? node instanceof Cal.LPlus : node instanceof Cal.LMult)) {
+          stack.push(plus ? ((Cal.LPlus) node).right : ((Cal.LMult) node).right);
+          stack.push(plus ? ((Cal.LPlus) node).left : ((Cal.LMult) node).left);
+        } else {
+          list.add(node);
+        }
+      }
+      operands = list.toArray(new Cal.LExpr[0]);
+      nested = new Chain[operands.length];
+      long[] prefix = new long[operands.length + 1];
+      for (int i = 0; i < operands.length; ++i) {
+        prefix[i + 1] = prefix[i] + operands[i].size;
+      }
+      root = Segment.split(prefix, 0, operands.length);
+    }
+  }
+
+  // Operands [lo, hi) of a chain. A segment of at most CUTOFF nodes, or of one operand, is a leaf
+  // and is evaluated in one task; any other is split into two of about half its size each.
+  static class Segment {
+    final int lo, hi;
+    final Segment left, right;
+
+    Segment(int lo, int hi, Segment left, Segment right) {
+      this.lo = lo;
+      this.hi = hi;
+      this.left = left;
+      this.right = right;
+    }
+
+    static Segment split(long[] prefix, int lo, int hi) {
+      if (hi - lo == 1 || prefix[hi] - prefix[lo] <= CUTOFF) {
+        return new Segment(lo, hi, null, null);
+      }
+      int mid = Arrays.binarySearch(prefix, lo + 1, hi, (prefix[lo] + prefix[hi]) / 2);
+      mid = mid < 0 ? Math.min(-mid - 1, hi - 1) : mid;
+      return new Segment(lo, hi, split(prefix, lo, mid), split(prefix, mid, hi));
+    }
+  }
+
+  static class Task extends RecursiveTask<Integer> {
+    private static final long serialVersionUID = 1L;
+    final transient Chain chain;
+    final transient Segment segment;
+    final int[] env;
+
+    Task(Chain chain, Segment segment, int[] env) {
+      this.chain = chain;
+      this.segment = segment;
+      this.env = env;
+    }
+
+    protected Integer compute() {
+      boolean plus = chain.plus;
+      if (segment.left == null) {
+        int acc = plus ? 0 : 1;
+        for (int i = segment.lo; i < segment.hi; ++i) {
+          Chain nested = chain.nested[i];
+          int val = nested == null ? evalSequential(chain.operands[i], env) : new Task(nested, nested.root, env).compute();
+          acc = plus ? acc + val : acc * val;
+        }
+        return acc;
+      }
+      Task left = new Task(chain, segment.left, env);
+      Task right = new Task(chain, segment.right, env);
+      left.fork();
+      int r = right.compute();
+      int l = left.join();
+      return plus ? l + r : l * r;
+    }
+  }
+}
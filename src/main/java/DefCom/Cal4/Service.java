@@ -0,0 +1,255 @@
+// Serving many concurrent evaluations of registered expressions, in process or over a loopback socket
+package DefCom.Cal4;
+
+import DefCom.Util.Metrics;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
+
+// Sharing rules: an Entry's Loc and LExpr are never changed after registration, and compiled code is
+// stateless, so any number of threads can evaluate one Entry. Each Session owns its buffers and must be
+// confined to one thread; the endpoint gives every connection its own virtual thread and Session.
+// An Entry owns the Handle it gets from the cache until it is unregistered, so evicting the cache entry
+// never demotes a registered expression.
+class Service {
+  static final Metrics.Calls CALLS = Metrics.calls("service");
+
+  static class Entry {
+    final Loc loc = new Loc();
+    final Cal.LExpr located;
+    // Cal.fallback until the compiled code is ready, like Tiered, so no depth is too much for it.
+    volatile ToIntFunction<int[]> code;
+    // Guarded by the Entry.
+    CodeSpace.Handle handle;
+    boolean closed = false;
+
+    Entry(Cal.Expr expr) {
+      located = Cal.locate(expr, loc);
+      code = Cal.fallback(located);
+    }
+
+    void compiled(CodeSpace.Handle handle) {
+      synchronized (this) {
+        if (!closed) {
+          this.handle = handle;
+          code = handle;
+          return;
+        }
+      }
+      handle.close();
+    }
+
+    void close() {
+      CodeSpace.Handle handle;
+      synchronized (this) {
+        closed = true;
+        handle = this.handle;
+        this.handle = null;
+      }
+      if (handle != null) {
+        handle.close();
+      }
+    }
+  }
+
+  final ConcurrentHashMap<String, Entry> registry = new ConcurrentHashMap<>();
+  final CompileCache cache;
+  // A bounded queue: once it is full, register fails instead of piling up compiles.
+  final ThreadPoolExecutor compiler;
+
+  Service(int compileQueue, CompileCache cache) {
+    this.cache = cache;
+    this.compiler = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(compileQueue), r -> {
+      Thread t = new Thread(r, "DefCom-service-compiler");
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  Service() {this(64, new CompileCache(256));}
+
+  // Locates expr now and compiles it in the background. Throws RejectedExecutionException, and
+  // registers nothing, when the compile queue is full; the caller should back off and retry.
+  void register(String id, Cal.Expr expr) {
+    Entry entry = new Entry(expr);
+    if (registry.putIfAbsent(id, entry) != null) {
+      throw new RuntimeException("Already registered: " + id);
+    }
+    try {
+      compiler.execute(() -> {
+        try {
+          entry.compiled(cache.compile(entry.located));
+        } catch (Throwable t) {
+          // Keep serving from the fallback.
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      registry.remove(id, entry);
+      entry.close();
+      throw e;
+    }
+  }
+
+  Entry entry(String id) {
+    Entry entry = registry.get(id);
+    if (entry == null) {
+      throw new RuntimeException("Unknown expression: " + id);
+    }
+    return entry;
+  }
+
+  Loc loc(String id) {return entry(id).loc;}
+
+  // For callers that bind their own environment against loc(id).
+  int eval(String id, int[] locEnv) {
+    CALLS.tick();
+    return entry(id).code.applyAsInt(locEnv);
+  }
+
+  int eval(String id, Env env) {
+    CALLS.tick();
+    Entry entry = entry(id);
+    return entry.code.applyAsInt(env.bind(entry.loc));
+  }
+
+  void unregister(String id) {
+    Entry entry = registry.remove(id);
+    if (entry != null) {
+      entry.close();
+    }
+  }
+
+  // Registered expressions keep evaluating, but give their compiled code back to the cache.
+  void shutdown() {
+    compiler.shutdownNow();
+    for (Entry entry : registry.values()) {
+      entry.close();
+    }
+  }
+
+  // One caller's reusable env buffer, grown to the largest expression it has evaluated.
+  // stamps[slot] == stamp marks the slots bound by the current request, without clearing anything.
+  static class Session {
+    final Service service;
+    int[] buffer = new int[16];
+    int[] stamps = new int[16];
+    int stamp = 0;
+
+    Session(Service service) {this.service = service;}
+
+    int eval(String id, String[] names, int[] values, int count) {
+      CALLS.tick();
+      Entry entry = service.entry(id);
+      int size = entry.loc.size();
+      if (buffer.length < size) {
+        buffer = new int[size];
+        stamps = new int[size];
+      }
+      ++stamp;
+      int bound = 0;
+      for (int i = 0; i < count; ++i) {
+        int symbol = Symbol.lookup(names[i]);
+        int slot = symbol < 0 ? -1 : entry.loc.slot(symbol);
+        if (slot < 0) {
+          continue;
+        }
+        if (stamps[slot] != stamp) {
+          stamps[slot] = stamp;
+          ++bound;
+        }
+        buffer[slot] = values[i];
+      }
+      if (bound < size) {
+        for (int slot = 0; slot < size; ++slot) {
+          if (stamps[slot] != stamp) {
+            throw new RuntimeException("Unbound variable: " + entry.loc.name(slot));
+          }
+        }
+      }
+      return entry.code.applyAsInt(buffer);
+    }
+  }
+
+  // A line protocol on the loopback interface, one request per line:
+  //   REGISTER <id> <expression as JSON>   ->  OK | BUSY | ERROR <message>
+  //   EVAL <id> <name>=<value> ...         ->  <value> | ERROR <message>
+  // BUSY is the backpressure signal: the compile queue is full and nothing was registered.
+  // Every request path is iterative, so no depth of expression is too much for the endpoint.
+  // Closing the returned socket stops the endpoint.
+  ServerSocket serve(int port) throws IOException {
+    ServerSocket server = new ServerSocket(port, 0, InetAddress.getLoopbackAddress());
+    ExecutorService connections = Executors.newVirtualThreadPerTaskExecutor();
+    Thread.ofVirtual().name("DefCom-service-accept").start(() -> {
+      try {
+        while (true) {
+          Socket socket = server.accept();
+          connections.execute(() -> handle(socket));
+        }
+      } catch (IOException e) {
+        // The server socket was closed.
+      } finally {
+        connections.shutdownNow();
+      }
+    });
+    return server;
+  }
+
+  void handle(Socket socket) {
+    try (socket;
+         BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+         PrintWriter out = new PrintWriter(socket.getOutputStream(), true, StandardCharsets.UTF_8)) {
+      Session session = new Session(this);
+      String[] names = new String[16];
+      int[] values = new int[16];
+      for (String line = in.readLine(); line != null; line = in.readLine()) {
+        String[] words = line.trim().split("\\s+", 3);
+        try {
+          switch (words[0]) {
+            case "REGISTER" -> {
+              register(words[1], Cal.readExpr(new StringReader(words[2])));
+              out.println("OK");
+            }
+            case "EVAL" -> {
+              String[] pairs = words.length > 2 ? words[2].split("\\s+") : new String[0];
+              if (names.length < pairs.length) {
+                names = new String[pairs.length];
+                values = new int[pairs.length];
+              }
+              for (int i = 0; i < pairs.length; ++i) {
+                int eq = pairs[i].indexOf('=');
+                names[i] = pairs[i].substring(0, eq);
+                values[i] = Integer.parseInt(pairs[i].substring(eq + 1));
+              }
+              Metrics.Eval event = new Metrics.Eval("endpoint");
+              int result = session.eval(words[1], names, values, pairs.length);
+              event.done(1);
+              out.println(result);
+            }
+            default -> throw new RuntimeException("Unexpected value: " + words[0]);
+          }
+        } catch (RejectedExecutionException e) {
+          out.println("BUSY");
+        } catch (RuntimeException e) {
+          out.println("ERROR " + e.getMessage());
+        }
+      }
+    } catch (IOException e) {
+      // The client went away.
+    }
+  }
+}
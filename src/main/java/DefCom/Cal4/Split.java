@@ -0,0 +1,144 @@
+// Generating source for large located expressions as many small methods over locals
+package DefCom.Cal4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+// A single expression as the body of apply breaks the 64 KB method limit, and long before that
+// HotSpot refuses to JIT methods over 8000 bytes of bytecode. Here every binary node becomes a local
+// in three-address form, and the tree is cut into methods of at most METHOD_NODES nodes, so every
+// method stays well under both limits and javac never sees deeply nested parentheses.
+// A left operand that is a local is dead after its use, so its local is reused for the result,
+// which keeps left-leaning chains down to a handful of locals.
+class Split {
+  static final int METHOD_NODES = 500;
+  // Methods are spread over nested helper classes so no class file outgrows its constant pool.
+  static final int CLASS_METHODS = 1000;
+
+  // Outlined subtrees in postorder, each mapped to its method number. The root is always last.
+  final IdentityHashMap<Cal.LExpr, Integer> outlined = new IdentityHashMap<>();
+  final ArrayList<Cal.LExpr> methods = new ArrayList<>();
+
+  void outline(Cal.LExpr expr) {
+    outlined.put(expr, methods.size());
+    methods.add(expr);
+  }
+
+  static Cal.LExpr left(Cal.LExpr expr) {
+    return expr instanceof Cal.LPlus ? ((Cal.LPlus) expr).left : ((Cal.LMult) expr).left;
+  }
+
+  static Cal.LExpr right(Cal.LExpr expr) {
+    return expr instanceof Cal.LPlus ? ((Cal.LPlus) expr).right : ((Cal.LMult) expr).right;
+  }
+
+  // Keeps the number of nodes inlined into each node under METHOD_NODES by outlining its larger
+  // children; an outlined child only counts as one node, the call.
+  void partition(Cal.LExpr root) {
+    new Cal.LExprWalk() {
+      int[] sizes = new int[64];
+      int sp = 0;
+
+      public void leaf(Cal.LExpr expr) {
+        if (sp == sizes.length) {
+          sizes = Arrays.copyOf(sizes, sp * 2);
+        }
+        sizes[sp++] = 1;
+      }
+
+      public void exit(Cal.LExpr expr) {
+        int r = sizes[--sp];
+        int l = sizes[sp - 1];
+        if (1 + l + r > METHOD_NODES) {
+          if (l >= r) {
+            outline(left(expr));
+            l = 1;
+          } else {
+            outline(right(expr));
+            r = 1;
+          }
+        }
+        if (1 + l + r > METHOD_NODES) {
+          outline(l > 1 ? left(expr) : right(expr));
+          l = r = 1;
+        }
+        sizes[sp - 1] = 1 + l + r;
+      }
+    }.walk(root);
+    outline(root);
+  }
+
+  // Writes the statements of method into sb and returns the operand holding its result.
+  // An outlined child is read from t, where its own method has already stored it.
+  String statements(StringBuilder sb, int method, String indent) {
+    Cal.LExpr root = methods.get(method);
+    ArrayList<String> operands = new ArrayList<>();
+    new Cal.LExprWalk() {
+      int locals = 0;
+
+      public Cal.LExpr left(Cal.LExpr expr) {
+        return expr != root && outlined.containsKey(expr) ? null : super.left(expr);
+      }
+
+      public void leaf(Cal.LExpr expr) {
+        if (expr != root && outlined.containsKey(expr)) {
+          operands.add("t[" + outlined.get(expr) + "]");
+        } else if (expr instanceof Cal.LLit) {
+          operands.add("(" + ((Cal.LLit) expr).val + ")");
+        } else {
+          operands.add(expr.compile());
+        }
+      }
+
+      public void exit(Cal.LExpr expr) {
+        String right = operands.remove(operands.size() - 1);
+        String left = operands.remove(operands.size() - 1);
+        String local = left;
+        if (left.startsWith("v")) {
+          sb.append(indent);
+        } else {
+          local = "v" + locals++;
+          sb.append(indent).append("int ");
+        }
+        sb.append(local).append(" = ").append(left)
+          .append(expr instanceof Cal.LPlus ? " + " : " * ").append(right).append(";\n");
+        operands.add(local);
+      }
+    }.walk(root);
+    return operands.get(0);
+  }
+
+  // A single method is the body of applyAsInt. Otherwise every method stores its result in t[method],
+  // and applyAsInt runs them all in postorder, as Multi does, so no generated call is nested in another
+  // however deep the expression: the stack holds applyAsInt, one Part's run and one method.
+  static String source(Cal.LExpr expr) {
+    Split split = new Split();
+    split.partition(expr);
+    int count = split.methods.size();
+    StringBuilder sb = new StringBuilder(), members = new StringBuilder();
+    sb.append("package generated;\n");
+    sb.append("import java.util.function.ToIntFunction;\n");
+    sb.append("public class Generated implements ToIntFunction<int[]> {\n");
+    sb.append("  public int applyAsInt(int[] env) {\n");
+    if (count == 1) {
+      String result = split.statements(sb, 0, "    ");
+      sb.append("    return ").append(result).append(";\n");
+    } else {
+      ArrayList<StringBuilder> methods = new ArrayList<>();
+      for (int m = 0; m < count; ++m) {
+        StringBuilder method = new StringBuilder();
+        String result = split.statements(method, m, "      ");
+        methods.add(method.append("      t[").append(m).append("] = ").append(result).append(";\n"));
+      }
+      Multi.temps(sb, members, count);
+      Multi.runs(sb, methods.size(), "env, t");
+      Multi.parts(members, methods, "int[] env, int[] t", "env, t");
+      sb.append("    return t[").append(count - 1).append("];\n");
+    }
+    sb.append("  }\n");
+    sb.append(members);
+    sb.append("}\n");
+    return sb.toString();
+  }
+}
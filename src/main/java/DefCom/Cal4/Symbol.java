@@ -0,0 +1,46 @@
+// Interning variable names as dense ints, so nothing past parsing hashes or compares Strings
+package DefCom.Cal4;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Ids are handed out in order of first use and are never reused, so they can index arrays.
+// The table is shared by every thread: lookups of known names take no lock, only new names do.
+// Since ids are never reused, the table can only grow, so it is capped at MAX names: past that,
+// interning a new name fails rather than growing without limit, for instance when remote clients
+// keep registering formulas over fresh names. Known names are unaffected. -Ddefcom.symbols sets MAX.
+class Symbol {
+  static final int MAX = Integer.getInteger("defcom.symbols", 1 << 20);
+  static final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+  // names[id] is written before id is published in ids, so whoever has an id can read its name.
+  static volatile String[] names = new String[64];
+
+  static int intern(String name) {
+    Integer id = ids.get(name);
+    return id != null ? id : add(name);
+  }
+
+  static synchronized int add(String name) {
+    Integer id = ids.get(name);
+    if (id == null) {
+      id = ids.size();
+      if (id >= MAX) {
+        throw new RuntimeException("Too many symbols: " + MAX);
+      }
+      if (id == names.length) {
+        names = Arrays.copyOf(names, id * 2);
+      }
+      names[id] = name;
+      ids.put(name, id);
+    }
+    return id;
+  }
+
+  // Returns -1 for a name never interned, without interning it.
+  static int lookup(String name) {
+    Integer id = ids.get(name);
+    return id == null ? -1 : id;
+  }
+
+  static String name(int id) {return names[id];}
+}
@@ -0,0 +1,112 @@
+// Starting an expression on the located closures, and swapping in compiled code once it is hot
+package DefCom.Cal4;
+
+import DefCom.Util.Metrics;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToIntFunction;
+
+// A Tiered owns the Handle it gets from its cache, so evicting the cache entry does not demote it;
+// close gives the Handle up, and the cache may then unload its class.
+class Tiered implements AutoCloseable {
+  static final int INTERPRETED = 0, COMPILING = 1, COMPILED = 2, FAILED = 3, CLOSED = 4;
+
+  // Counters over every Tiered, for tuning the threshold.
+  static final AtomicLong promotions = new AtomicLong();
+  static final AtomicLong compiled = new AtomicLong();
+  static final AtomicLong failures = new AtomicLong();
+  static final AtomicLong rejections = new AtomicLong();
+  static final AtomicLong compileNanos = new AtomicLong();
+  static final Metrics.Calls CALLS = Metrics.calls("tiered");
+
+  // A bounded queue, like Service's: when it is full a promotion is rejected and retried later.
+  static final ThreadPoolExecutor COMPILER =
+    new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(64), r -> {
+      Thread t = new Thread(r, "DefCom-compiler");
+      t.setDaemon(true);
+      return t;
+    });
+  // Shared by every Tiered built without a cache of its own, so equal expressions compile once.
+  static final CompileCache CACHE = new CompileCache(256);
+
+  final Loc loc = new Loc();
+  final Cal.LExpr located;
+  final int threshold;
+  final Executor executor;
+  final CompileCache cache;
+  final AtomicInteger tier = new AtomicInteger(INTERPRETED);
+  volatile ToIntFunction<int[]> current;
+  // Set before tier becomes COMPILED.
+  volatile CodeSpace.Handle handle;
+  // Only counts up to threshold. Lost updates from racing callers just delay the promotion slightly.
+  int calls = 0;
+
+  Tiered(Cal.Expr expr, int threshold, Executor executor, CompileCache cache) {
+    this.located = Cal.locate(expr, loc);
+    this.threshold = threshold;
+    this.executor = executor;
+    this.cache = cache;
+    this.current = Cal.fallback(located);
+  }
+
+  Tiered(Cal.Expr expr, int threshold) {this(expr, threshold, COMPILER, CACHE);}
+
+  int eval(int[] env) {
+    CALLS.tick();
+    if (calls < threshold && ++calls == threshold) {
+      promote();
+    }
+    return current.applyAsInt(env);
+  }
+
+  void promote() {
+    if (!tier.compareAndSet(INTERPRETED, COMPILING)) {
+      return;
+    }
+    promotions.incrementAndGet();
+    try {
+      executor.execute(() -> {
+        long start = System.nanoTime();
+        try {
+          CodeSpace.Handle code = cache.compile(located);
+          handle = code;
+          if (!tier.compareAndSet(COMPILING, COMPILED)) {
+            // Closed while compiling.
+            code.close();
+            return;
+          }
+          current = code;
+          compiled.incrementAndGet();
+        } catch (Throwable t) {
+          tier.compareAndSet(COMPILING, FAILED);
+          failures.incrementAndGet();
+        } finally {
+          compileNanos.addAndGet(System.nanoTime() - start);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      // Stay interpreted and try again after another threshold's worth of calls.
+      rejections.incrementAndGet();
+      calls = 0;
+      tier.compareAndSet(COMPILING, INTERPRETED);
+    }
+  }
+
+  // Keeps evaluating afterwards, through the demoted Handle or the fallback, but never promotes again.
+  public void close() {
+    if (tier.getAndSet(CLOSED) == COMPILED) {
+      handle.close();
+    }
+  }
+
+  static String metrics() {
+    return "Tiered(promotions=%s, compiled=%s, failures=%s, rejections=%s, compileMillis=%s)".formatted(
+      promotions.get(), compiled.get(), failures.get(), rejections.get(), compileNanos.get() / 1000000);
+  }
+}
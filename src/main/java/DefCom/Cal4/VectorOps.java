@@ -0,0 +1,29 @@
+// SIMD kernels for Batch, only loaded when jdk.incubator.vector is present
+package DefCom.Cal4;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorSpecies;
+
+class VectorOps {
+  static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+
+  static void add(int[] left, int[] right, int[] dst, int length) {
+    int i = 0;
+    for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+      IntVector.fromArray(SPECIES, left, i).add(IntVector.fromArray(SPECIES, right, i)).intoArray(dst, i);
+    }
+    for (; i < length; ++i) {
+      dst[i] = left[i] + right[i];
+    }
+  }
+
+  static void mul(int[] left, int[] right, int[] dst, int length) {
+    int i = 0;
+    for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+      IntVector.fromArray(SPECIES, left, i).mul(IntVector.fromArray(SPECIES, right, i)).intoArray(dst, i);
+    }
+    for (; i < length; ++i) {
+      dst[i] = left[i] * right[i];
+    }
+  }
+}
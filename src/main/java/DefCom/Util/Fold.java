@@ -0,0 +1,44 @@
+package DefCom.Util;
+
+// The constant-folding rules for Plus and Mult, written once for every Cal that folds:
+// Cal2's simp and Cal4's specialize. Int arithmetic wraps, so folding two literals is exact.
+public abstract class Fold<E> {
+    public abstract boolean isLit(E expr);
+
+    // Only called when isLit(expr).
+    public abstract int val(E expr);
+
+    public abstract E lit(int val);
+
+    public abstract E plus(E left, E right);
+
+    public abstract E mult(E left, E right);
+
+    boolean isLit(E expr, int val) {return isLit(expr) && val(expr) == val;}
+
+    public E simpPlus(E left, E right) {
+        if (isLit(left) && isLit(right)) {
+            return lit(val(left) + val(right));
+        } else if (isLit(left, 0)) {
+            return right;
+        } else if (isLit(right, 0)) {
+            return left;
+        } else {
+            return plus(left, right);
+        }
+    }
+
+    public E simpMult(E left, E right) {
+        if (isLit(left) && isLit(right)) {
+            return lit(val(left) * val(right));
+        } else if (isLit(left, 0) || isLit(right, 0)) {
+            return lit(0);
+        } else if (isLit(left, 1)) {
+            return right;
+        } else if (isLit(right, 1)) {
+            return left;
+        } else {
+            return mult(left, right);
+        }
+    }
+}
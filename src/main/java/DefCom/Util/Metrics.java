@@ -0,0 +1,203 @@
+package DefCom.Util;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// Process-wide counters and latency histograms for every engine, mirrored as JFR events.
+// Events are recorded once per batch of evaluations, per compile, per locate and per simplification.
+// Single evaluations in the engines themselves are counted by Calls, which is cheap enough to stay on.
+public class Metrics {
+    // Power-of-two buckets: bucket i counts samples in [2^i, 2^(i+1)) nanoseconds.
+    public static class Histogram {
+        final AtomicLongArray buckets = new AtomicLongArray(64);
+        final LongAdder count = new LongAdder();
+        final LongAdder sum = new LongAdder();
+        final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        public void record(long nanos) {
+            buckets.incrementAndGet(63 - Long.numberOfLeadingZeros(Math.max(nanos, 1)));
+            count.increment();
+            sum.add(nanos);
+            max.accumulate(nanos);
+        }
+
+        // An upper bound on the p-th quantile, from the bucket it falls in.
+        public long quantile(double p) {
+            long target = (long) Math.ceil(p * count.sum());
+            long seen = 0;
+            for (int i = 0; i < 64; ++i) {
+                seen += buckets.get(i);
+                if (seen >= target && seen > 0) {
+                    return Math.min(max.get(), (2L << i) - 1);
+                }
+            }
+            return 0;
+        }
+
+        public String toString() {
+            long n = count.sum();
+            return "n=%s mean=%.3fms p50<=%.3fms p99<=%.3fms max=%.3fms".formatted(
+                n, n == 0 ? 0.0 : sum.sum() / 1e6 / n, quantile(0.5) / 1e6, quantile(0.99) / 1e6, max.get() / 1e6);
+        }
+    }
+
+    static final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    static final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    public static void add(String counter, long delta) {counters.computeIfAbsent(counter, k -> new LongAdder()).add(delta);}
+
+    public static long get(String counter) {
+        LongAdder adder = counters.get(counter);
+        return adder == null ? 0 : adder.sum();
+    }
+
+    public static Histogram histogram(String name) {return histograms.computeIfAbsent(name, k -> new Histogram());}
+
+    // Counts calls on paths too hot for a LongAdder per call. Each call is recorded with probability
+    // 1/SAMPLE, as SAMPLE calls, so the total is unbiased and the other calls write nothing shared.
+    public static class Calls {
+        public static final int SAMPLE = 1024;
+        final LongAdder adder;
+
+        Calls(LongAdder adder) {this.adder = adder;}
+
+        public void tick() {
+            if ((ThreadLocalRandom.current().nextInt() & (SAMPLE - 1)) == 0) {
+                adder.add(SAMPLE);
+            }
+        }
+    }
+
+    public static Calls calls(String engine) {return new Calls(counters.computeIfAbsent("calls." + engine, k -> new LongAdder()));}
+
+    // Every event is begun when it is constructed and committed, and counted, by done.
+    @Category("DefCom")
+    abstract static class Timed extends Event {
+        transient final long start = System.nanoTime();
+
+        Timed() {begin();}
+
+        long finish() {
+            end();
+            commit();
+            return System.nanoTime() - start;
+        }
+    }
+
+    @Name("DefCom.Eval")
+    @Label("Evaluations")
+    public static class Eval extends Timed {
+        @Label("Engine")
+        String engine;
+        @Label("Count")
+        long count;
+
+        public Eval(String engine) {this.engine = engine;}
+
+        public void done(long count) {
+            this.count = count;
+            long nanos = finish();
+            add("eval." + engine + ".count", count);
+            add("eval." + engine + ".nanos", nanos);
+        }
+    }
+
+    @Name("DefCom.Locate")
+    @Label("Locate")
+    public static class Locate extends Timed {
+        @Label("Slots")
+        int slots;
+        @Label("Nodes")
+        int nodes;
+
+        public void done(int slots, int nodes) {
+            this.slots = slots;
+            this.nodes = nodes;
+            histogram("locate").record(finish());
+            add("locate.slots", slots);
+            add("locate.nodes", nodes);
+        }
+    }
+
+    @Name("DefCom.Compile")
+    @Label("Compile")
+    public static class Compile extends Timed {
+        @Label("Engine")
+        String engine;
+        @Label("Generated Length")
+        int length;
+
+        public Compile(String engine) {this.engine = engine;}
+
+        // length is in characters of source for javac, bytes of class file for asm, nodes for handles.
+        public void done(int length) {
+            this.length = length;
+            histogram("compile." + engine).record(finish());
+            add("compile." + engine + ".length", length);
+            add("compile.classes", 1);
+        }
+    }
+
+    @Name("DefCom.Simplify")
+    @Label("Simplify")
+    public static class Simplify extends Timed {
+        @Label("Nodes Before")
+        long before;
+        @Label("Nodes After")
+        long after;
+
+        public void done(long before, long after) {
+            this.before = before;
+            this.after = after;
+            histogram("simp").record(finish());
+            add("simp.before", before);
+            add("simp.after", after);
+        }
+    }
+
+    // Eval rates are per thread: batches from concurrent threads add up their count and their time.
+    public static String report() {
+        StringBuilder sb = new StringBuilder("Metrics:\n");
+        for (Map.Entry<String, LongAdder> x : new TreeMap<>(counters).entrySet()) {
+            String name = x.getKey();
+            if (name.startsWith("eval.") && name.endsWith(".count")) {
+                String engine = name.substring(5, name.length() - 6);
+                long count = x.getValue().sum(), nanos = get("eval." + engine + ".nanos");
+                sb.append("  eval %s: %s in %sms, %.1fM/s%n".formatted(
+                    engine, count, nanos / 1000000, nanos == 0 ? 0.0 : count * 1e3 / nanos));
+            } else if (name.startsWith("calls.")) {
+                sb.append("  calls %s: about %s%n".formatted(name.substring(6), x.getValue().sum()));
+            }
+        }
+        for (Map.Entry<String, Histogram> x : new TreeMap<>(histograms).entrySet()) {
+            sb.append("  %s: %s%n".formatted(x.getKey(), x.getValue()));
+            String name = x.getKey();
+            if (name.startsWith("compile.")) {
+                long n = x.getValue().count.sum();
+                sb.append("    generated length %s on average%n".formatted(n == 0 ? 0 : get(name + ".length") / n));
+            }
+        }
+        if (histograms.containsKey("locate")) {
+            sb.append("  locate totals: %s slots, %s nodes%n".formatted(get("locate.slots"), get("locate.nodes")));
+        }
+        if (histograms.containsKey("simp")) {
+            long before = get("simp.before"), after = get("simp.after");
+            sb.append("  simp totals: %s -> %s nodes (%.1f%% fewer)%n".formatted(
+                before, after, before == 0 ? 0.0 : 100.0 * (before - after) / before));
+        }
+        sb.append("  classes: %s compiled, %s loaded in the JVM".formatted(
+            get("compile.classes"), ManagementFactory.getClassLoadingMXBean().getLoadedClassCount()));
+        return sb.toString();
+    }
+}
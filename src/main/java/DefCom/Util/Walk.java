@@ -0,0 +1,53 @@
+package DefCom.Util;
+
+import java.util.Arrays;
+
+// An in-order walk over a binary tree that keeps its stack on the heap instead of the Java stack.
+public abstract class Walk<E> {
+    // Returns null when node is a leaf.
+    public abstract E left(E node);
+
+    public abstract E right(E node);
+
+    public void leaf(E node) {}
+
+    public void enter(E node) {}
+
+    public void middle(E node) {}
+
+    public void exit(E node) {}
+
+    @SuppressWarnings("unchecked")
+    public void walk(E root) {
+        Object[] nodes = new Object[64];
+        boolean[] inRight = new boolean[64];
+        int top = 0;
+        E node = root;
+        while (true) {
+            for (E left = left(node); left != null; left = left(node)) {
+                if (top == nodes.length) {
+                    nodes = Arrays.copyOf(nodes, top * 2);
+                    inRight = Arrays.copyOf(inRight, top * 2);
+                }
+                enter(node);
+                nodes[top] = node;
+                inRight[top] = false;
+                ++top;
+                node = left;
+            }
+            leaf(node);
+            while (top > 0 && inRight[top - 1]) {
+                E done = (E) nodes[--top];
+                nodes[top] = null;
+                exit(done);
+            }
+            if (top == 0) {
+                return;
+            }
+            E parent = (E) nodes[top - 1];
+            middle(parent);
+            inRight[top - 1] = true;
+            node = right(parent);
+        }
+    }
+}